@@ -0,0 +1,233 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Blob reads and writes the files of the versions directory. A version is
+ * stored either raw, as an exact copy of the file, or encoded: a header
+ * recording the codec and the raw size, followed by the contents, deflated
+ * unless the codec is STORED. Versions that do not compress well are kept raw,
+ * so that they can still be cloned into the working directory; a raw version
+ * that happens to begin with the header magic is encoded as STORED instead.
+ */
+final class Blob {
+	private static final int MAGIC = 0x474c5a31; // "GLZ1"
+	private static final int VERSION = 1;
+
+	/* Codec of contents kept as they are. */
+	static final int STORED = 0;
+	/* Codec of contents compressed with java.util.zip.Deflater. */
+	static final int DEFLATE = 1;
+
+	/* Amount of a file deflated to judge whether it is worth compressing. */
+	private static final int SAMPLE_SIZE = 1 << 16;
+
+	/* Largest compressed size, relative to the sample, worth keeping. */
+	private static final double MAX_RATIO = 0.9;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/* Extensions of formats that are compressed already. */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList("7z", "bz2", "docx", "gif",
+			"gz", "jar", "jpeg", "jpg", "mp3", "mp4", "pdf", "png", "pptx", "rar", "webp", "xlsx", "xz", "zip", "zst"));
+
+	private Blob() {
+	}
+
+	/**
+	 * Returns whether SOURCE, a working file, should be stored deflated: its
+	 * name does not mark it as compressed already, and its first SAMPLE_SIZE
+	 * bytes deflate to at most MAX_RATIO of their size.
+	 */
+	static boolean isCompressible(File source) throws IOException {
+		String name = source.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+		if (COMPRESSED_EXTENSIONS.contains(extension)) {
+			return false;
+		}
+		byte[] sample;
+		try (InputStream in = new FileInputStream(source)) {
+			sample = in.readNBytes(SAMPLE_SIZE);
+		}
+		if (sample.length == 0) {
+			return false;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(sample);
+			deflater.finish();
+			byte[] output = new byte[sample.length];
+			int size = 0;
+			while (!deflater.finished() && size < output.length) {
+				size += deflater.deflate(output, size, output.length - size);
+			}
+			return deflater.finished() && size <= sample.length * MAX_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Returns whether FILE starts like an encoded version. A working file that
+	 * does cannot be stored raw.
+	 */
+	static boolean isEncoded(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Writes SOURCE to OUT as an encoded version using CODEC, deflating at LEVEL.
+	 */
+	static void write(File source, OutputStream out, int codec, int level) throws IOException {
+		out.write(header(codec, source.length()));
+		try (InputStream in = new FileInputStream(source)) {
+			if (codec == STORED) {
+				in.transferTo(out);
+				return;
+			}
+			Deflater deflater = new Deflater(level);
+			try {
+				DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+				in.transferTo(deflated);
+				deflated.finish();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Returns the header of an encoded version of SIZE raw bytes using CODEC.
+	 */
+	static byte[] header(int codec, long size) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (Codec.Output header = new Codec.Output(bytes)) {
+			header.writeInt(MAGIC);
+			header.writeByte(VERSION);
+			header.writeByte(codec);
+			header.writeVarLong(size);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns the stored form of a version with contents RAW: deflated at LEVEL
+	 * if that saves enough, and raw otherwise.
+	 */
+	static byte[] encode(byte[] raw, int level) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (level > 0 && raw.length > 0) {
+			bytes.write(header(DEFLATE, raw.length));
+			Deflater deflater = new Deflater(level);
+			try (DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, deflater, BUFFER_SIZE)) {
+				deflated.write(raw);
+			} finally {
+				deflater.end();
+			}
+			if (bytes.size() <= raw.length * MAX_RATIO) {
+				return bytes.toByteArray();
+			}
+			bytes.reset();
+		}
+		if (raw.length >= 4 && ByteBuffer.wrap(raw).getInt() == MAGIC) {
+			bytes.write(header(STORED, raw.length));
+		}
+		bytes.write(raw);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns whether the packed version DATA is encoded rather than raw.
+	 */
+	static boolean isEncoded(ByteBuffer data) {
+		return data.remaining() >= 4 && data.getInt(data.position()) == MAGIC;
+	}
+
+	/**
+	 * Opens the version stored in FILE, returning a stream of its raw contents.
+	 */
+	static InputStream open(File file) throws IOException {
+		return open(new FileInputStream(file), file.getPath());
+	}
+
+	/**
+	 * Opens the packed version DATA, returning a stream of its raw contents.
+	 */
+	static InputStream open(ByteBuffer data) throws IOException {
+		return open(Pack.stream(data), "pack");
+	}
+
+	private static InputStream open(InputStream stream, String source) throws IOException {
+		Codec.Input in = new Codec.Input(stream);
+		try {
+			in.mark(4);
+			byte[] magic = in.readNBytes(4);
+			if (magic.length < 4 || ByteBuffer.wrap(magic).getInt() != MAGIC) {
+				in.reset();
+				return in;
+			}
+			int version = in.readUnsignedByte();
+			int codec = in.readUnsignedByte();
+			if (version > VERSION) {
+				throw new IOException("unsupported gitlet version format " + version + ": " + source);
+			}
+			in.readVarLong();
+			if (codec == STORED) {
+				return in;
+			} else if (codec == DEFLATE) {
+				Inflater inflater = new Inflater();
+				return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							inflater.end();
+						}
+					}
+				};
+			}
+			throw new IOException("unknown codec " + codec + " in " + source);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the raw contents of the version stored in FILE.
+	 */
+	static byte[] read(File file) throws IOException {
+		try (InputStream in = open(file)) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * Returns the raw contents of the packed version DATA.
+	 */
+	static byte[] read(ByteBuffer data) throws IOException {
+		try (InputStream in = open(data)) {
+			return in.readAllBytes();
+		}
+	}
+}
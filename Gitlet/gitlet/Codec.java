@@ -0,0 +1,475 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Codec holds the on-disk binary formats used by a Gitlet repository. Every
+ * record starts with a four byte magic number and a one byte format version so
+ * that older files can still be recognized after the format changes. Object
+ * IDs are stored as 20 raw bytes, lengths and counts as unsigned varints,
+ * timestamps as epoch milliseconds and strings as length-prefixed UTF-8.
+ */
+final class Codec {
+	/* Length in bytes of a SHA-1 ID. */
+	static final int ID_LENGTH = 20;
+
+	/* Magic numbers identifying each kind of record. */
+	private static final int COMMIT_MAGIC = 0x474c4331; // "GLC1"
+	private static final int HEAD_MAGIC = 0x474c4831; // "GLH1"
+	private static final int REF_MAGIC = 0x474c5231; // "GLR1"
+	private static final int NAMES_MAGIC = 0x474c4e31; // "GLN1"
+	private static final int ENTRIES_MAGIC = 0x474c4531; // "GLE1"
+	private static final int TREE_MAGIC = 0x474c4431; // "GLD1"
+
+	/* Current version of every record format. */
+	private static final int VERSION = 1;
+
+	/*
+	 * Current version of the commit format. Version 2 added merge parents and the
+	 * generation number, and version 3 replaced the file list with the ID of the
+	 * top tree.
+	 */
+	private static final int COMMIT_VERSION = 3;
+
+	/* Kinds of tree entries. */
+	private static final int TREE_FILE = 0;
+	private static final int TREE_DIRECTORY = 1;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private Codec() {
+	}
+
+	/* IDS */
+
+	/**
+	 * Returns the 40 digit, zero padded, lower case hex form of ID.
+	 */
+	static String toHex(byte[] id) {
+		char[] result = new char[id.length * 2];
+		for (int i = 0; i < id.length; i++) {
+			result[2 * i] = HEX_DIGITS[(id[i] >> 4) & 0xf];
+			result[2 * i + 1] = HEX_DIGITS[id[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+	/**
+	 * Returns the 20 raw bytes of the hex ID HEX. IDs with fewer than 40 digits
+	 * (as produced by older versions that dropped leading zeros) are zero padded
+	 * on the left.
+	 */
+	static byte[] fromHex(String hex) {
+		if (hex.length() > 2 * ID_LENGTH) {
+			throw new IllegalArgumentException("invalid object id: " + hex);
+		}
+		byte[] id = new byte[ID_LENGTH];
+		int digit = 2 * ID_LENGTH - hex.length();
+		for (int i = 0; i < hex.length(); i++, digit++) {
+			int value = Character.digit(hex.charAt(i), 16);
+			if (value < 0) {
+				throw new IllegalArgumentException("invalid object id: " + hex);
+			}
+			id[digit / 2] |= (digit % 2 == 0) ? value << 4 : value;
+		}
+		return id;
+	}
+
+	/**
+	 * Returns HEX padded with leading zeros to the full 40 digits.
+	 */
+	static String padHex(String hex) {
+		return toHex(fromHex(hex));
+	}
+
+	/* COMMITS */
+
+	/**
+	 * Reads the tree with the given ID from the store, together with its
+	 * subtrees.
+	 */
+	interface TreeReader {
+		FileMap.Dir read(String id) throws IOException;
+	}
+
+	/**
+	 * Writes COMMIT to STREAM. The header (ID, parents, timestamp and message)
+	 * comes before the ID of the top tree, which must already be stored, so that
+	 * readers which only need the header can stop early.
+	 */
+	static void writeCommit(OutputStream stream, Commit commit) throws IOException {
+		try (Output out = new Output(stream)) {
+			out.writeInt(COMMIT_MAGIC);
+			out.writeByte(COMMIT_VERSION);
+			out.writeId(commit.getId());
+			out.writeVarLong(commit.getParents().size());
+			for (String parent : commit.getParents()) {
+				out.writeId(parent);
+			}
+			out.writeVarLong(commit.getGeneration());
+			out.writeVarLong(commit.getTimestamp());
+			out.writeString(commit.getMessage());
+			out.writeId(commit.getContents().treeId());
+		}
+	}
+
+	/**
+	 * Reads the full commit stored in FILE, including its file map, whose trees
+	 * are read through TREES. Commits written before trees hold their file list
+	 * instead: for those, LOADED returns the file map of a commit already in
+	 * memory, or null; if it has the first parent's, the new map shares every
+	 * unchanged entry with it.
+	 */
+	static Commit readCommit(File file, Function<String, FileMap> loaded, TreeReader trees) throws IOException {
+		return readCommit(new FileInputStream(file), file, loaded, trees);
+	}
+
+	/**
+	 * Reads only the header of the commit stored in FILE. The returned commit has
+	 * no file map, and the bytes holding it are never decoded.
+	 */
+	static Commit readCommitHeader(File file) throws IOException {
+		return readCommit(new FileInputStream(file), file, null, null, false);
+	}
+
+	/**
+	 * Reads a full commit from STREAM, which holds the bytes of a commit file
+	 * stored in SOURCE. LOADED and TREES are used as by readCommit(File,
+	 * Function, TreeReader).
+	 */
+	static Commit readCommit(InputStream stream, File source, Function<String, FileMap> loaded, TreeReader trees)
+			throws IOException {
+		return readCommit(stream, source, loaded, trees, true);
+	}
+
+	/**
+	 * Reads only the header of a commit from STREAM, which holds the bytes of a
+	 * commit file stored in SOURCE.
+	 */
+	static Commit readCommitHeader(InputStream stream, File source) throws IOException {
+		return readCommit(stream, source, null, null, false);
+	}
+
+	private static Commit readCommit(InputStream stream, File file, Function<String, FileMap> loaded,
+			TreeReader trees, boolean withContents) throws IOException {
+		try (Input in = new Input(stream)) {
+			int version = in.expectHeader(COMMIT_MAGIC, COMMIT_VERSION, file);
+			String id = in.readId();
+			int parentCount = in.readVarInt();
+			List<String> parents = new ArrayList<>(parentCount);
+			for (int i = 0; i < parentCount; i++) {
+				parents.add(in.readId());
+			}
+			int generation = version >= 2 ? in.readVarInt() : 0;
+			long timestamp = in.readVarLong();
+			String message = in.readString();
+			if (!withContents) {
+				return new Commit(id, parents, message, timestamp, generation, null);
+			} else if (version >= 3) {
+				FileMap contents = new FileMap(trees.read(in.readId()));
+				return new Commit(id, parents, message, timestamp, generation, contents);
+			}
+			FileMap base = parents.isEmpty() ? null : loaded.apply(parents.get(0));
+			FileMap.Builder contents = new FileMap.Builder(base == null ? FileMap.EMPTY : base);
+			int size = in.readVarInt();
+			HashSet<String> names = base == null ? null : new HashSet<>();
+			for (int i = 0; i < size; i++) {
+				String name = in.readString();
+				String fileVersion = in.readId();
+				if (base == null || !fileVersion.equals(base.get(name))) {
+					contents.put(name, fileVersion);
+				}
+				if (names != null) {
+					names.add(name);
+				}
+			}
+			if (contents.size() > size) {
+				for (String name : base.keySet()) {
+					if (!names.contains(name)) {
+						contents.remove(name);
+					}
+				}
+			}
+			return new Commit(id, parents, message, timestamp, generation, contents.build());
+		}
+	}
+
+	/* TREES */
+
+	/**
+	 * Writes the tree object of DIR, one directory of a commit, to STREAM: its
+	 * entries in name order, each a name, whether it is a file or a
+	 * subdirectory, and the ID of the file version or of the subdirectory's
+	 * tree.
+	 */
+	static void writeTree(OutputStream stream, FileMap.Dir dir) throws IOException {
+		try (Output out = new Output(stream)) {
+			out.writeInt(TREE_MAGIC);
+			out.writeByte(VERSION);
+			out.writeVarLong(dir.size());
+			for (Map.Entry<String, Object> entry : dir.entries()) {
+				out.writeString(entry.getKey());
+				if (entry.getValue() instanceof FileMap.Dir) {
+					out.writeByte(TREE_DIRECTORY);
+					out.writeId(((FileMap.Dir) entry.getValue()).id());
+				} else {
+					out.writeByte(TREE_FILE);
+					out.writeId((String) entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ID of the tree object of DIR: the SHA-1 of its encoding.
+	 */
+	static String treeId(FileMap.Dir dir) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			writeTree(new DigestOutputStream(OutputStream.nullOutputStream(), sha1), dir);
+			return toHex(sha1.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("System does not support SHA-1");
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads from STREAM, which holds the bytes of a tree stored in SOURCE, the
+	 * tree with ID ID. Its subtrees are read through SUBTREES.
+	 */
+	static FileMap.Dir readTree(InputStream stream, File source, String id, TreeReader subtrees)
+			throws IOException {
+		try (Input in = new Input(stream)) {
+			in.expectHeader(TREE_MAGIC, source);
+			int size = in.readVarInt();
+			List<String> names = new ArrayList<>(size);
+			List<Object> values = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				names.add(in.readString());
+				int kind = in.readUnsignedByte();
+				String entryId = in.readId();
+				if (kind == TREE_DIRECTORY) {
+					values.add(subtrees.read(entryId));
+				} else if (kind == TREE_FILE) {
+					values.add(entryId);
+				} else {
+					throw new IOException("unknown tree entry kind " + kind + ": " + source);
+				}
+			}
+			return FileMap.Dir.of(names, values, id);
+		}
+	}
+
+	/* REPOSITORY STATE */
+
+	/**
+	 * Writes the current branch name and head commit ID to FILE.
+	 */
+	static void writeHead(File file, String branch, String head) throws IOException {
+		try (Output out = new Output(new FileOutputStream(file))) {
+			out.writeInt(HEAD_MAGIC);
+			out.writeByte(VERSION);
+			out.writeString(branch);
+			out.writeId(head);
+		}
+	}
+
+	/**
+	 * Reads a file written by writeHead, returning the branch name followed by the
+	 * head commit ID.
+	 */
+	static String[] readHead(File file) throws IOException {
+		try (Input in = new Input(new FileInputStream(file))) {
+			in.expectHeader(HEAD_MAGIC, file);
+			return new String[] { in.readString(), in.readId() };
+		}
+	}
+
+	/**
+	 * Writes a branch head ID to FILE.
+	 */
+	static void writeRef(File file, String id) throws IOException {
+		try (Output out = new Output(new FileOutputStream(file))) {
+			out.writeInt(REF_MAGIC);
+			out.writeByte(VERSION);
+			out.writeId(id);
+		}
+	}
+
+	static String readRef(File file) throws IOException {
+		try (Input in = new Input(new FileInputStream(file))) {
+			in.expectHeader(REF_MAGIC, file);
+			return in.readId();
+		}
+	}
+
+	/**
+	 * Writes a list of file names, such as the files staged for removal, to FILE.
+	 */
+	static void writeNames(File file, List<String> names) throws IOException {
+		try (Output out = new Output(new FileOutputStream(file))) {
+			out.writeInt(NAMES_MAGIC);
+			out.writeByte(VERSION);
+			out.writeVarLong(names.size());
+			for (String name : names) {
+				out.writeString(name);
+			}
+		}
+	}
+
+	static List<String> readNames(File file) throws IOException {
+		try (Input in = new Input(new FileInputStream(file))) {
+			in.expectHeader(NAMES_MAGIC, file);
+			int size = in.readVarInt();
+			List<String> names = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				names.add(in.readString());
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Writes a map from file name to version ID, such as the IDs of the staged
+	 * files, to FILE.
+	 */
+	static void writeEntries(File file, Map<String, String> entries) throws IOException {
+		try (Output out = new Output(new FileOutputStream(file))) {
+			out.writeInt(ENTRIES_MAGIC);
+			out.writeByte(VERSION);
+			out.writeVarLong(entries.size());
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				out.writeString(entry.getKey());
+				out.writeId(entry.getValue());
+			}
+		}
+	}
+
+	static HashMap<String, String> readEntries(File file) throws IOException {
+		try (Input in = new Input(new FileInputStream(file))) {
+			in.expectHeader(ENTRIES_MAGIC, file);
+			int size = in.readVarInt();
+			HashMap<String, String> entries = new HashMap<>(size * 4 / 3 + 1);
+			for (int i = 0; i < size; i++) {
+				String name = in.readString();
+				entries.put(name, in.readId());
+			}
+			return entries;
+		}
+	}
+
+	/* PRIMITIVES */
+
+	/**
+	 * Buffered output stream that knows how to write the primitive types shared
+	 * by every record.
+	 */
+	static class Output extends DataOutputStream {
+		Output(OutputStream out) {
+			super(new BufferedOutputStream(out));
+		}
+
+		void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7fL) != 0) {
+				write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeId(String hex) throws IOException {
+			write(fromHex(hex));
+		}
+
+		void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			write(bytes);
+		}
+	}
+
+	/**
+	 * Buffered input stream reading the primitives written by Output.
+	 */
+	static class Input extends DataInputStream {
+		Input(InputStream in) {
+			super(new BufferedInputStream(in));
+		}
+
+		void expectHeader(int magic, File file) throws IOException {
+			expectHeader(magic, VERSION, file);
+		}
+
+		/**
+		 * Checks the magic number of a record and returns its format version, which
+		 * must be at most MAXVERSION.
+		 */
+		int expectHeader(int magic, int maxVersion, File file) throws IOException {
+			if (readInt() != magic) {
+				throw new IOException("not a gitlet object: " + file);
+			}
+			int version = readUnsignedByte();
+			if (version > maxVersion) {
+				throw new IOException("unsupported format version " + version + ": " + file);
+			}
+			return version;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				if (b < 0) {
+					throw new EOFException();
+				}
+				result |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("malformed varint");
+		}
+
+		int readVarInt() throws IOException {
+			long value = readVarLong();
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new IOException("length out of range: " + value);
+			}
+			return (int) value;
+		}
+
+		String readId() throws IOException {
+			byte[] id = new byte[ID_LENGTH];
+			readFully(id);
+			return toHex(id);
+		}
+
+		String readString() throws IOException {
+			byte[] bytes = new byte[readVarInt()];
+			readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -1,40 +1,46 @@
 package gitlet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.math.BigInteger;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 
 /**
  * Commit represents a single commit in a Gitlet repository.
  */
-public class Commit implements Serializable {
-	static final long serialVersionUID = 12345678900L;
-
+public class Commit {
 	private final String id;
-	private final String parent;
+	// IDs of the parent commits; empty for the initial commit, two for a merge.
+	private final List<String> parents;
 	private final String message;
-	private final Date commitDate;
-	private final HashMap<String, String> contents;
+	// Commit time in milliseconds since the epoch.
+	private final long timestamp;
+	// Length of the longest path to the initial commit, plus one. Zero if unknown
+	// (commits written by older versions).
+	private final int generation;
+	// Files of the commit, as a tree of directories. Null when only the header
+	// of the commit was read from disk.
+	private final FileMap contents;
 
-	public Commit(String id, String parent, String message, Date commitDate, HashMap<String, String> contents) {
+	public Commit(String id, List<String> parents, String message, long timestamp, int generation,
+			FileMap contents) {
 		this.id = id;
-		this.parent = parent;
+		this.parents = Collections.unmodifiableList(parents);
 		this.message = message;
-		this.commitDate = commitDate;
+		this.timestamp = timestamp;
+		this.generation = generation;
 		this.contents = contents;
 	}
 
-	public Commit(String parent, String message, Date commitDate, HashMap<String, String> contents) {
-		this.parent = parent;
+	public Commit(List<String> parents, int generation, String message, Date commitDate, FileMap contents) {
+		this.parents = Collections.unmodifiableList(parents);
+		this.generation = generation;
 		this.message = message;
-		this.commitDate = commitDate;
+		this.timestamp = commitDate.getTime();
 		this.contents = contents;
 		this.id = computeHash();
 	}
@@ -43,8 +49,19 @@ public class Commit implements Serializable {
 		return id;
 	}
 
+	/**
+	 * Returns the first parent of this commit, or "" for the initial commit.
+	 */
 	public String getParent() {
-		return parent;
+		return parents.isEmpty() ? "" : parents.get(0);
+	}
+
+	public List<String> getParents() {
+		return parents;
+	}
+
+	public int getGeneration() {
+		return generation;
 	}
 
 	public String getMessage() {
@@ -52,33 +69,52 @@ public class Commit implements Serializable {
 	}
 
 	public Date getCommitDate() {
-		return commitDate;
+		return new Date(timestamp);
 	}
 
-	public HashMap<String, String> getContents() {
-		return new HashMap<>(contents);
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the files of this commit, mapped to their version IDs. The map is
+	 * immutable and shared, not a copy.
+	 */
+	public FileMap getContents() {
+		if (contents == null) {
+			throw new IllegalStateException("only the header of commit " + id + " was loaded");
+		}
+		return contents;
 	}
 
 	@Override
 	public String toString() {
-		return "===\n" + "Commit " + id + "\n" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(commitDate) + '\n'
+		return "===\n" + "Commit " + id + "\n" + LogWriter.DATE_FORMAT.format(getCommitDate().toInstant()) + '\n'
 				+ message + '\n';
 	}
 
+	/**
+	 * Computes the ID of this commit from a canonical encoding of its parents,
+	 * timestamp, message and the ID of its top tree, which covers every file
+	 * (see Codec.writeTree). Every field is length framed, so the ID does not
+	 * depend on HashMap order, the JVM or the default charset. The encoding is
+	 * streamed straight into the digest rather than built up in memory.
+	 */
 	private String computeHash() {
 		try {
 			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-			sha1.update(this.parent.getBytes());
-			sha1.update(this.message.getBytes());
-			sha1.update(this.commitDate.toString().getBytes());
-
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			ObjectOutputStream objectStream = new ObjectOutputStream(stream);
-			objectStream.writeObject(this.contents);
-			objectStream.close();
-			sha1.update(stream.toByteArray());
-
-			return new BigInteger(1, sha1.digest()).toString(16);
+			try (Codec.Output out = new Codec.Output(new DigestOutputStream(OutputStream.nullOutputStream(), sha1))) {
+				out.writeString("commit");
+				out.writeVarLong(parents.size());
+				for (String parent : parents) {
+					out.writeId(parent);
+				}
+				out.writeLong(timestamp);
+				out.writeString(message);
+				out.writeString("tree");
+				out.writeId(contents.treeId());
+			}
+			return Codec.toHex(sha1.digest());
 		} catch (NoSuchAlgorithmException | IOException e) {
 			e.printStackTrace();
 			return null;
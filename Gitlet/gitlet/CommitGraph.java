@@ -0,0 +1,383 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * CommitGraph answers ancestry questions (parents, generation number, commit
+ * time) without decoding commit objects.
+ *
+ * The graph is kept in two layers. The base file is sorted by commit ID and
+ * memory-mapped: a 256 entry fan-out table on the first ID byte narrows a
+ * binary search over the fixed-width ID table, and each commit has a fixed
+ * width record of parent positions, generation number and commit time. Commits
+ * created since the base was written are appended to a small tail file, which
+ * is read into memory. When the tail grows past a fraction of the base, both
+ * are merged into a new base, so appending stays cheap and the base is
+ * rewritten only a logarithmic number of times as history grows.
+ *
+ * Commits are identified by their position: 0 to baseSize - 1 in the base, and
+ * baseSize onwards for the tail. Gitlet commits have at most two parents.
+ */
+class CommitGraph {
+	private static final int BASE_MAGIC = 0x474c4731; // "GLG1"
+	private static final int TAIL_MAGIC = 0x474c5431; // "GLT1"
+	private static final int VERSION = 1;
+
+	/* Size of the magic number, version and commit count. */
+	private static final int HEADER_SIZE = 9;
+	private static final int FANOUT_SIZE = 256 * 4;
+	/* Two parent positions, the generation number and the commit time. */
+	private static final int RECORD_SIZE = 4 + 4 + 4 + 8;
+
+	/* Position used for a missing parent. */
+	private static final int NONE = -1;
+
+	/* Smallest tail that is ever merged into the base. */
+	private static final int MIN_TAIL = 64;
+
+	private final File baseFile;
+	private final File tailFile;
+
+	/* Mapped base file, or null if there is none yet. */
+	private final ByteBuffer base;
+	private final int baseSize;
+	private final int idsOffset;
+	private final int recordsOffset;
+
+	/* Commits in the tail, in the order they were appended. */
+	private final List<String> tailIds;
+	private final List<int[]> tailParents;
+	private final List<Integer> tailGenerations;
+	private final List<Long> tailTimestamps;
+	private final HashMap<String, Integer> tailPositions;
+
+	private CommitGraph(File baseFile, File tailFile, ByteBuffer base) {
+		this.baseFile = baseFile;
+		this.tailFile = tailFile;
+		this.base = base;
+		this.baseSize = base == null ? 0 : base.getInt(5);
+		this.idsOffset = HEADER_SIZE + FANOUT_SIZE;
+		this.recordsOffset = idsOffset + baseSize * Codec.ID_LENGTH;
+		this.tailIds = new ArrayList<>();
+		this.tailParents = new ArrayList<>();
+		this.tailGenerations = new ArrayList<>();
+		this.tailTimestamps = new ArrayList<>();
+		this.tailPositions = new HashMap<>();
+	}
+
+	/**
+	 * Returns whether a graph has been written to BASEFILE or TAILFILE.
+	 */
+	static boolean exists(File baseFile, File tailFile) {
+		return baseFile.isFile() || tailFile.isFile();
+	}
+
+	/**
+	 * Opens the graph stored in BASEFILE and TAILFILE.
+	 */
+	static CommitGraph load(File baseFile, File tailFile) throws IOException {
+		ByteBuffer base = null;
+		if (baseFile.isFile()) {
+			try (FileChannel channel = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (mapped.getInt(0) != BASE_MAGIC || (mapped.get(4) & 0xff) > VERSION) {
+					throw new IOException("not a gitlet commit graph: " + baseFile);
+				}
+				base = mapped;
+			}
+		}
+		CommitGraph graph = new CommitGraph(baseFile, tailFile, base);
+		if (tailFile.isFile()) {
+			try (Codec.Input in = new Codec.Input(new FileInputStream(tailFile))) {
+				in.expectHeader(TAIL_MAGIC, tailFile);
+				while (in.available() > 0) {
+					String id = in.readId();
+					int parentCount = in.readUnsignedByte();
+					List<String> parents = new ArrayList<>(parentCount);
+					for (int i = 0; i < parentCount; i++) {
+						parents.add(in.readId());
+					}
+					graph.addToTail(id, parents, in.readInt(), in.readLong());
+				}
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Writes a new graph holding exactly COMMITS, whose generation numbers are
+	 * GENERATIONS, replacing any existing graph.
+	 */
+	static CommitGraph build(File baseFile, File tailFile, List<Commit> commits, HashMap<String, Integer> generations)
+			throws IOException {
+		writeBase(baseFile, commits, generations);
+		tailFile.delete();
+		return load(baseFile, tailFile);
+	}
+
+	/* QUERIES */
+
+	/**
+	 * Returns the number of commits in the graph.
+	 */
+	int size() {
+		return baseSize + tailIds.size();
+	}
+
+	/**
+	 * Returns the position of the commit with full ID ID, or -1 if the commit is
+	 * not in the graph.
+	 */
+	int position(String id) {
+		Integer tail = tailPositions.get(id);
+		if (tail != null) {
+			return tail;
+		}
+		if (base == null) {
+			return NONE;
+		}
+		byte[] key = Codec.fromHex(id);
+		int first = key[0] & 0xff;
+		int low = first == 0 ? 0 : base.getInt(HEADER_SIZE + (first - 1) * 4);
+		int high = base.getInt(HEADER_SIZE + first * 4) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareId(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return NONE;
+	}
+
+	boolean contains(String id) {
+		return position(id) != NONE;
+	}
+
+	/**
+	 * Returns the full IDs of the commits whose ID starts with the hex digits
+	 * PREFIX, in sorted order. At most LIMIT IDs are returned, so asking for two
+	 * is enough to tell a unique prefix from an ambiguous one.
+	 *
+	 * @param prefix lower case hex digits of an abbreviated ID.
+	 * @param limit  the largest number of IDs to return.
+	 * @return the matching IDs.
+	 */
+	List<String> findByPrefix(String prefix, int limit) {
+		List<String> matches = new ArrayList<>();
+		if (prefix.isEmpty() || prefix.length() > 2 * Codec.ID_LENGTH) {
+			return matches;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (Character.digit(prefix.charAt(i), 16) < 0) {
+				return matches;
+			}
+		}
+		if (base != null) {
+			StringBuilder padded = new StringBuilder(prefix);
+			while (padded.length() < 2 * Codec.ID_LENGTH) {
+				padded.append('0');
+			}
+			byte[] key = Codec.fromHex(padded.toString());
+			int low = 0, high = baseSize;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compareId(mid, key) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			for (int pos = low; pos < baseSize && matches.size() < limit; pos++) {
+				String id = id(pos);
+				if (!id.startsWith(prefix)) {
+					break;
+				}
+				matches.add(id);
+			}
+		}
+		for (String id : tailIds) {
+			if (matches.size() >= limit) {
+				break;
+			}
+			if (id.startsWith(prefix)) {
+				matches.add(id);
+			}
+		}
+		matches.sort(null);
+		return matches;
+	}
+
+	/**
+	 * Returns the full ID of the commit at position POS.
+	 */
+	String id(int pos) {
+		if (pos >= baseSize) {
+			return tailIds.get(pos - baseSize);
+		}
+		byte[] id = new byte[Codec.ID_LENGTH];
+		base.get(idsOffset + pos * Codec.ID_LENGTH, id);
+		return Codec.toHex(id);
+	}
+
+	/**
+	 * Returns the positions of the parents of the commit at position POS.
+	 */
+	int[] parents(int pos) {
+		if (pos >= baseSize) {
+			return tailParents.get(pos - baseSize);
+		}
+		int record = recordsOffset + pos * RECORD_SIZE;
+		int first = base.getInt(record), second = base.getInt(record + 4);
+		if (first == NONE) {
+			return new int[0];
+		} else if (second == NONE) {
+			return new int[] { first };
+		}
+		return new int[] { first, second };
+	}
+
+	int generation(int pos) {
+		if (pos >= baseSize) {
+			return tailGenerations.get(pos - baseSize);
+		}
+		return base.getInt(recordsOffset + pos * RECORD_SIZE + 8);
+	}
+
+	long timestamp(int pos) {
+		if (pos >= baseSize) {
+			return tailTimestamps.get(pos - baseSize);
+		}
+		return base.getLong(recordsOffset + pos * RECORD_SIZE + 12);
+	}
+
+	/* UPDATES */
+
+	/**
+	 * Adds a newly created commit, whose parents must already be in the graph.
+	 * The commit is appended to the tail file, and the tail is merged into the
+	 * base once it has grown large enough.
+	 */
+	void add(Commit commit, int generation) throws IOException {
+		if (contains(commit.getId())) {
+			return;
+		}
+		if (commit.getParents().size() > 2) {
+			throw new IllegalArgumentException("commit graph supports at most two parents");
+		}
+		boolean created = !tailFile.exists();
+		try (Codec.Output out = new Codec.Output(new FileOutputStream(tailFile, true))) {
+			if (created) {
+				out.writeInt(TAIL_MAGIC);
+				out.writeByte(VERSION);
+			}
+			out.writeId(commit.getId());
+			out.writeByte(commit.getParents().size());
+			for (String parent : commit.getParents()) {
+				out.writeId(parent);
+			}
+			out.writeInt(generation);
+			out.writeLong(commit.getTimestamp());
+		}
+		addToTail(commit.getId(), commit.getParents(), generation, commit.getTimestamp());
+	}
+
+	/**
+	 * Returns whether the tail has grown large enough to be merged into the base.
+	 */
+	boolean needsCompaction() {
+		return tailIds.size() > Math.max(MIN_TAIL, baseSize / 8);
+	}
+
+	/**
+	 * Merges the tail into a new base file and returns the compacted graph.
+	 */
+	CommitGraph compact() throws IOException {
+		List<Commit> commits = new ArrayList<>(size());
+		HashMap<String, Integer> generations = new HashMap<>(size() * 4 / 3 + 1);
+		for (int pos = 0; pos < size(); pos++) {
+			String id = id(pos);
+			List<String> parents = new ArrayList<>(2);
+			for (int parent : parents(pos)) {
+				parents.add(id(parent));
+			}
+			commits.add(new Commit(id, parents, "", timestamp(pos), generation(pos), null));
+			generations.put(id, generation(pos));
+		}
+		return build(baseFile, tailFile, commits, generations);
+	}
+
+	private void addToTail(String id, List<String> parents, int generation, long timestamp) {
+		int[] positions = new int[parents.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = position(parents.get(i));
+		}
+		tailPositions.put(id, size());
+		tailIds.add(id);
+		tailParents.add(positions);
+		tailGenerations.add(generation);
+		tailTimestamps.add(timestamp);
+	}
+
+	private int compareId(int pos, byte[] key) {
+		int offset = idsOffset + pos * Codec.ID_LENGTH;
+		for (int i = 0; i < Codec.ID_LENGTH; i++) {
+			int cmp = Integer.compare(base.get(offset + i) & 0xff, key[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+
+	private static void writeBase(File file, List<Commit> commits, HashMap<String, Integer> generations)
+			throws IOException {
+		Commit[] sorted = commits.toArray(new Commit[0]);
+		Arrays.sort(sorted, (a, b) -> a.getId().compareTo(b.getId()));
+		HashMap<String, Integer> positions = new HashMap<>(sorted.length * 4 / 3 + 1);
+		int[] fanout = new int[256];
+		for (int i = 0; i < sorted.length; i++) {
+			positions.put(sorted[i].getId(), i);
+			fanout[Integer.parseInt(sorted[i].getId().substring(0, 2), 16)]++;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try (Codec.Output out = new Codec.Output(new FileOutputStream(temp))) {
+			out.writeInt(BASE_MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(sorted.length);
+			int total = 0;
+			for (int count : fanout) {
+				total += count;
+				out.writeInt(total);
+			}
+			for (Commit commit : sorted) {
+				out.writeId(commit.getId());
+			}
+			for (Commit commit : sorted) {
+				List<String> parents = commit.getParents();
+				out.writeInt(parents.size() > 0 ? positions.get(parents.get(0)) : NONE);
+				out.writeInt(parents.size() > 1 ? positions.get(parents.get(1)) : NONE);
+				out.writeInt(generations.get(commit.getId()));
+				out.writeLong(commit.getTimestamp());
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
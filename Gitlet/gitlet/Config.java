@@ -0,0 +1,62 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Config holds the optional settings of a repository, read from the
+ * properties file .gitlet/config. The file is edited by hand; a missing file or
+ * setting leaves the default in place.
+ */
+class Config {
+	/* Name of the configuration file inside the gitlet directory. */
+	static final String FILE = "config";
+
+	private final Properties properties;
+
+	private Config(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Reads the configuration of the repository in the current directory.
+	 */
+	static Config load() {
+		Properties properties = new Properties();
+		File file = new File(Repository.GITLET_DIRECTORY, FILE);
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				properties.load(in);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return new Config(properties);
+	}
+
+	/**
+	 * Returns the value of the setting KEY, or DEFAULTVALUE if it is not set.
+	 */
+	String get(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue).trim();
+	}
+
+	/**
+	 * Returns the value of the numeric setting KEY, or DEFAULTVALUE if it is not
+	 * set.
+	 */
+	long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new GitletException("Invalid value for " + key + " in .gitlet/config: " + value.trim());
+		}
+	}
+}
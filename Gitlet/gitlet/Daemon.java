@@ -0,0 +1,169 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Daemon is the optional server mode of Gitlet. "gitlet daemon", run in the
+ * root of a repository, keeps that repository loaded and serves commands sent
+ * to the Unix domain socket .gitlet/daemon.sock, saving each command the JVM
+ * start-up and the repository load. Every other invocation of Gitlet in that
+ * directory finds the socket and acts as a thin client, forwarding its
+ * arguments and copying back the output. "gitlet daemon --stop" stops the
+ * daemon. Setting the environment variable GITLET_NO_DAEMON disables
+ * forwarding. A batch read from standard input is always run directly.
+ *
+ * Each command runs under the repository lock, so the daemon and Gitlet
+ * processes run directly never interleave. Before each command the daemon
+ * checks whether the repository files were changed by someone else since its
+ * last command, and reloads the repository if so. A command that fails also
+ * discards the in-memory repository, since it may have been left half updated.
+ */
+class Daemon {
+	/* Name of the socket inside the gitlet directory. */
+	private static final String SOCKET = "daemon.sock";
+
+	/* Files whose modification shows that the repository changed on disk. */
+	private static final String[] WATCHED = { "HEAD", "refs", "deletions", "staged", "commit-graph",
+			"commit-graph-tail", "message-index", "message-index-tail", "config", "packs" };
+
+	private Daemon() {
+	}
+
+	private static Path socketPath() {
+		return Paths.get(Repository.GITLET_DIRECTORY, SOCKET);
+	}
+
+	/**
+	 * Sends ARGS to the daemon of the repository in the current directory, if one
+	 * is running, and copies its output to standard output.
+	 *
+	 * @param args the command line.
+	 * @return true if a daemon ran the command. false otherwise.
+	 */
+	static boolean forward(String[] args) {
+		Path socket = socketPath();
+		if (System.getenv("GITLET_NO_DAEMON") != null || !Files.exists(socket)) {
+			return false;
+		} else if (args.length == 1 && args[0].equals("batch")) {
+			// The daemon cannot read this process's standard input.
+			return false;
+		}
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			Codec.Output request = new Codec.Output(Channels.newOutputStream(channel));
+			request.writeVarLong(args.length);
+			for (String arg : args) {
+				request.writeString(arg);
+			}
+			request.flush();
+			InputStream response = Channels.newInputStream(channel);
+			response.transferTo(System.out);
+			System.out.flush();
+			return true;
+		} catch (IOException e) {
+			// No daemon is listening on a stale socket; run the command here.
+			return false;
+		}
+	}
+
+	/**
+	 * Serves commands for the repository in the current directory until told to
+	 * stop. A command that fails, even while loading the repository, is reported
+	 * to its client and leaves the daemon running.
+	 */
+	static void serve() throws IOException {
+		Path socket = socketPath();
+		Files.deleteIfExists(socket);
+		Repository repository = null;
+		long stamp = 0;
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			System.out.println("Gitlet daemon listening on " + socket + ".");
+			boolean running = true;
+			while (running) {
+				try (SocketChannel client = server.accept()) {
+					String[] args = readRequest(client);
+					OutputStream raw = Channels.newOutputStream(client);
+					PrintStream out = new PrintStream(new BufferedOutputStream(raw), false, StandardCharsets.UTF_8);
+					PrintStream console = System.out;
+					System.setOut(out);
+					RepositoryLock lock = null;
+					try {
+						lock = RepositoryLock.acquire();
+						if (args.length > 0 && args[0].equals("daemon")) {
+							running = !(args.length == 2 && args[1].equals("--stop"));
+							System.out.println(running ? "A gitlet daemon is already running." : "Gitlet daemon stopped.");
+						} else {
+							if (repository == null || stamp() != stamp) {
+								repository = Repository.load();
+							}
+							repository = Main.execute(repository, args);
+							stamp = stamp();
+						}
+					} catch (GitletException e) {
+						System.out.println(e.getMessage());
+						repository = null;
+					} catch (RuntimeException e) {
+						// Report the failure to the client, which would otherwise see nothing.
+						e.printStackTrace(out);
+						repository = null;
+					} finally {
+						if (lock != null) {
+							lock.close();
+						}
+						System.setOut(console);
+						out.flush();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			Files.deleteIfExists(socket);
+		}
+	}
+
+	private static String[] readRequest(SocketChannel client) throws IOException {
+		Codec.Input in = new Codec.Input(Channels.newInputStream(client));
+		String[] args = new String[in.readVarInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readString();
+		}
+		return args;
+	}
+
+	/**
+	 * Returns a fingerprint of the modification times and sizes of the
+	 * repository's state files, which changes whenever another process commits,
+	 * stages or moves a branch.
+	 */
+	private static long stamp() {
+		long stamp = 17;
+		for (String name : WATCHED) {
+			File file = new File(Repository.GITLET_DIRECTORY, name);
+			stamp = stamp * 31 + file.lastModified();
+			stamp = stamp * 31 + file.length();
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				for (File child : children == null ? new File[0] : children) {
+					stamp = stamp * 31 + child.getName().hashCode();
+					stamp = stamp * 31 + child.lastModified();
+				}
+			}
+		}
+		return stamp;
+	}
+}
@@ -0,0 +1,189 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Delta encodes one version of a file as a list of instructions that rebuild
+ * it from another version, its base: copy a range of the base, or insert new
+ * bytes. A packed delta holds the 20-byte ID of the base, the size of the
+ * version it rebuilds, and the deflated instructions.
+ *
+ * Matches are found as in the classic diff-delta: the base is indexed in
+ * blocks of BLOCK bytes by a polynomial hash, a hash of the same width rolls
+ * over the version, and every block found is extended as far as the bytes
+ * agree, in both directions.
+ */
+final class Delta {
+	/* Width of the blocks of the base that are indexed. */
+	private static final int BLOCK = 16;
+
+	/* Multiplier of the rolling hash. */
+	private static final int PRIME = 16777619;
+
+	/* Candidates tried for each block of the version. */
+	private static final int MAX_PROBES = 16;
+
+	private static final int COPY = 0;
+	private static final int INSERT = 1;
+
+	private Delta() {
+	}
+
+	/**
+	 * Returns the packed delta that rebuilds TARGET from BASE, the contents of
+	 * the version BASEID.
+	 */
+	static byte[] create(String baseId, byte[] base, byte[] target) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Codec.Output header = new Codec.Output(bytes);
+		header.writeId(baseId);
+		header.writeVarLong(target.length);
+		header.flush();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (Codec.Output out = new Codec.Output(new DeflaterOutputStream(bytes, deflater))) {
+			encode(base, target, out);
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns the ID of the base of the packed delta DATA.
+	 */
+	static String baseId(ByteBuffer data) {
+		byte[] id = new byte[Codec.ID_LENGTH];
+		data.get(data.position(), id);
+		return Codec.toHex(id);
+	}
+
+	/**
+	 * Returns the size of the version encoded by the packed delta DATA.
+	 */
+	static long resultSize(ByteBuffer data) throws IOException {
+		Codec.Input in = new Codec.Input(Pack.stream(data));
+		in.readId();
+		return in.readVarLong();
+	}
+
+	/**
+	 * Rebuilds the version encoded by the packed delta DATA from BASE, the
+	 * contents of its base. The version is written to a new array after PREFIX,
+	 * which is copied to its start.
+	 */
+	static byte[] apply(byte[] base, ByteBuffer data, byte[] prefix) throws IOException {
+		InputStream stream = Pack.stream(data);
+		Codec.Input header = new Codec.Input(stream);
+		header.readId();
+		long size = header.readVarLong();
+		if (prefix.length + size > Integer.MAX_VALUE) {
+			throw new IOException("delta result too large");
+		}
+		byte[] result = new byte[prefix.length + (int) size];
+		System.arraycopy(prefix, 0, result, 0, prefix.length);
+		int pos = prefix.length;
+		Inflater inflater = new Inflater();
+		try (Codec.Input in = new Codec.Input(new InflaterInputStream(header, inflater))) {
+			while (pos < result.length) {
+				int op = in.readUnsignedByte();
+				if (op == COPY) {
+					int offset = in.readVarInt();
+					int length = in.readVarInt();
+					System.arraycopy(base, offset, result, pos, length);
+					pos += length;
+				} else if (op == INSERT) {
+					int length = in.readVarInt();
+					in.readFully(result, pos, length);
+					pos += length;
+				} else {
+					throw new IOException("corrupt delta");
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+		return result;
+	}
+
+	private static void encode(byte[] base, byte[] target, Codec.Output out) throws IOException {
+		int blocks = base.length / BLOCK;
+		int tableSize = Integer.highestOneBit(Math.max(1, blocks) * 2);
+		int mask = tableSize - 1;
+		int[] heads = new int[tableSize];
+		int[] next = new int[blocks];
+		for (int block = blocks - 1; block >= 0; block--) {
+			int slot = hash(base, block * BLOCK) & mask;
+			next[block] = heads[slot] - 1;
+			heads[slot] = block + 1;
+		}
+		int power = 1;
+		for (int i = 1; i < BLOCK; i++) {
+			power *= PRIME;
+		}
+
+		int insertStart = 0;
+		int pos = 0;
+		int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+		while (pos + BLOCK <= target.length) {
+			int bestOffset = -1, bestLength = 0;
+			int block = heads[hash & mask] - 1;
+			for (int probe = 0; block >= 0 && probe < MAX_PROBES; probe++, block = next[block]) {
+				int offset = block * BLOCK;
+				int length = 0;
+				while (offset + length < base.length && pos + length < target.length
+						&& base[offset + length] == target[pos + length]) {
+					length++;
+				}
+				if (length > bestLength) {
+					bestOffset = offset;
+					bestLength = length;
+				}
+			}
+			if (bestLength < BLOCK) {
+				if (pos + BLOCK < target.length) {
+					hash = (hash - target[pos] * power) * PRIME + target[pos + BLOCK];
+				}
+				pos++;
+				continue;
+			}
+			while (bestOffset > 0 && pos > insertStart && base[bestOffset - 1] == target[pos - 1]) {
+				bestOffset--;
+				pos--;
+				bestLength++;
+			}
+			insert(target, insertStart, pos, out);
+			out.writeByte(COPY);
+			out.writeVarLong(bestOffset);
+			out.writeVarLong(bestLength);
+			pos += bestLength;
+			insertStart = pos;
+			if (pos + BLOCK <= target.length) {
+				hash = hash(target, pos);
+			}
+		}
+		insert(target, insertStart, target.length, out);
+	}
+
+	private static void insert(byte[] target, int start, int end, Codec.Output out) throws IOException {
+		if (start < end) {
+			out.writeByte(INSERT);
+			out.writeVarLong(end - start);
+			out.write(target, start, end - start);
+		}
+	}
+
+	private static int hash(byte[] bytes, int start) {
+		int hash = 0;
+		for (int i = start; i < start + BLOCK; i++) {
+			hash = hash * PRIME + bytes[i];
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,383 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Diff finds the lines that differ between two files.
+ *
+ * Files are split into lines, and every distinct line is given a number, so
+ * that lines are compared as ints. The differences are found with Myers'
+ * O((N+M)D) algorithm in its linear-space form: the middle snake of the edit
+ * graph is found by searching from both ends at once, and the two halves on
+ * either side of it are solved recursively. Apart from the lines themselves,
+ * only two arrays of about N+M ints are ever allocated.
+ *
+ * The edits found are used by Merge, and written in the unified format for the
+ * diff command.
+ */
+final class Diff {
+	/*
+	 * Edit distance at which the search for a middle snake gives up and splits
+	 * at the furthest point reached instead, as GNU diff does, so that files with
+	 * little in common are not compared in quadratic time. Diffs past this cost
+	 * are correct but may not be the shortest.
+	 */
+	private static final int MAX_COST = 1024;
+
+	/* Unchanged lines shown around each change in a unified diff. */
+	private static final int CONTEXT = 3;
+
+	/* Amount of a file searched for a NUL byte to tell whether it is binary. */
+	private static final int BINARY_CHECK_SIZE = 8000;
+
+	/* Marker written after a last line that has no line terminator. */
+	private static final byte[] NO_NEWLINE = "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+	private Diff() {
+	}
+
+	/**
+	 * Lines is a file split into lines, each ending with its line terminator
+	 * (except perhaps the last), with the number given to each line.
+	 */
+	static final class Lines {
+		private final byte[] data;
+		private final int[] starts;
+		private final int[] ids;
+
+		private Lines(byte[] data, int[] starts, int[] ids) {
+			this.data = data;
+			this.starts = starts;
+			this.ids = ids;
+		}
+
+		/**
+		 * Returns the number of lines.
+		 */
+		int size() {
+			return ids.length;
+		}
+
+		/**
+		 * Returns the number of line I. Equal lines of files split together have
+		 * equal numbers.
+		 */
+		int id(int i) {
+			return ids[i];
+		}
+
+		/**
+		 * Writes lines FROM to TO, exclusive, to OUT.
+		 */
+		void write(int from, int to, OutputStream out) throws IOException {
+			out.write(data, starts[from], starts[to] - starts[from]);
+		}
+
+		/**
+		 * Writes lines FROM to TO, exclusive, to OUT, adding a line terminator if
+		 * the last one has none.
+		 */
+		void writeTerminated(int from, int to, OutputStream out) throws IOException {
+			write(from, to, out);
+			if (from < to && data[starts[to] - 1] != '\n') {
+				out.write('\n');
+			}
+		}
+
+		/**
+		 * Returns whether lines FROM to TO, exclusive, equal lines OTHERFROM to
+		 * OTHERTO of OTHER, a file split together with this one.
+		 */
+		boolean equals(int from, int to, Lines other, int otherFrom, int otherTo) {
+			return Arrays.equals(ids, from, to, other.ids, otherFrom, otherTo);
+		}
+	}
+
+	/**
+	 * Edit is one change: lines A_START to A_END of the first file, exclusive,
+	 * are replaced by lines B_START to B_END of the second.
+	 */
+	static final class Edit {
+		final int aStart;
+		final int aEnd;
+		final int bStart;
+		final int bEnd;
+
+		Edit(int aStart, int aEnd, int bStart, int bEnd) {
+			this.aStart = aStart;
+			this.aEnd = aEnd;
+			this.bStart = bStart;
+			this.bEnd = bEnd;
+		}
+	}
+
+	/**
+	 * Splits each of FILES into lines, numbering equal lines alike across all of
+	 * them.
+	 */
+	static Lines[] split(byte[]... files) {
+		HashMap<ByteBuffer, Integer> numbers = new HashMap<>();
+		Lines[] lines = new Lines[files.length];
+		for (int f = 0; f < files.length; f++) {
+			byte[] data = files[f];
+			int count = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] == '\n' || i == data.length - 1) {
+					count++;
+				}
+			}
+			int[] starts = new int[count + 1];
+			int[] ids = new int[count];
+			int line = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] == '\n' || i == data.length - 1) {
+					ByteBuffer key = ByteBuffer.wrap(data, starts[line], i + 1 - starts[line]).slice();
+					Integer id = numbers.putIfAbsent(key, numbers.size());
+					ids[line] = id == null ? numbers.size() - 1 : id;
+					starts[++line] = i + 1;
+				}
+			}
+			lines[f] = new Lines(data, starts, ids);
+		}
+		return lines;
+	}
+
+	/**
+	 * Returns the edits turning A into B, in order, where A and B were split
+	 * together.
+	 */
+	static List<Edit> diff(Lines a, Lines b) {
+		List<Edit> edits = new ArrayList<>();
+		new Search(a.ids, b.ids, edits).compare(0, a.size(), 0, b.size());
+		return edits;
+	}
+
+	/**
+	 * Writes to OUT the differences between OLD and NEW, two versions of the
+	 * file NAME, in unified format with CONTEXT lines of context. OLD is null if
+	 * the file is new, and NEW is null if it was deleted. Binary files are only
+	 * reported as differing.
+	 */
+	static void writeUnified(String name, byte[] old, byte[] current, OutputStream out) throws IOException {
+		Writer header = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		header.write("diff --gitlet a/" + name + " b/" + name + "\n");
+		if (old == null) {
+			header.write("new file\n");
+		} else if (current == null) {
+			header.write("deleted file\n");
+		}
+		byte[] a = old == null ? new byte[0] : old, b = current == null ? new byte[0] : current;
+		if (isBinary(a) || isBinary(b)) {
+			header.write("Binary files " + (old == null ? "/dev/null" : "a/" + name) + " and "
+					+ (current == null ? "/dev/null" : "b/" + name) + " differ\n");
+			header.flush();
+			return;
+		}
+		header.write("--- " + (old == null ? "/dev/null" : "a/" + name) + "\n");
+		header.write("+++ " + (current == null ? "/dev/null" : "b/" + name) + "\n");
+		header.flush();
+
+		Lines[] lines = split(a, b);
+		List<Edit> edits = diff(lines[0], lines[1]);
+		for (int first = 0, last; first < edits.size(); first = last + 1) {
+			last = first;
+			while (last + 1 < edits.size() && edits.get(last + 1).aStart - edits.get(last).aEnd <= 2 * CONTEXT) {
+				last++;
+			}
+			Edit start = edits.get(first), end = edits.get(last);
+			int aFrom = Math.max(0, start.aStart - CONTEXT);
+			int bFrom = start.bStart - (start.aStart - aFrom);
+			int aTo = Math.min(lines[0].size(), end.aEnd + CONTEXT);
+			int bTo = end.bEnd + (aTo - end.aEnd);
+			out.write(("@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n")
+					.getBytes(StandardCharsets.UTF_8));
+			int pos = aFrom;
+			for (Edit edit : edits.subList(first, last + 1)) {
+				writeLines(' ', lines[0], pos, edit.aStart, out);
+				writeLines('-', lines[0], edit.aStart, edit.aEnd, out);
+				writeLines('+', lines[1], edit.bStart, edit.bEnd, out);
+				pos = edit.aEnd;
+			}
+			writeLines(' ', lines[0], pos, aTo, out);
+		}
+	}
+
+	private static String range(int from, int to) {
+		int count = to - from;
+		return count == 1 ? Integer.toString(from + 1) : (count == 0 ? from : from + 1) + "," + count;
+	}
+
+	private static void writeLines(char prefix, Lines lines, int from, int to, OutputStream out)
+			throws IOException {
+		for (int i = from; i < to; i++) {
+			out.write(prefix);
+			lines.write(i, i + 1, out);
+			if (lines.data[lines.starts[i + 1] - 1] != '\n') {
+				out.write(NO_NEWLINE);
+			}
+		}
+	}
+
+	private static boolean isBinary(byte[] data) {
+		for (int i = 0; i < Math.min(data.length, BINARY_CHECK_SIZE); i++) {
+			if (data[i] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Search holds the state of one diff.
+	 */
+	private static final class Search {
+		private final int[] a;
+		private final int[] b;
+		private final List<Edit> edits;
+		/* Furthest reaching x on each diagonal, searching forwards and backwards. */
+		private final int[] forward;
+		private final int[] backward;
+
+		Search(int[] a, int[] b, List<Edit> edits) {
+			this.a = a;
+			this.b = b;
+			this.edits = edits;
+			int size = a.length + b.length + 5;
+			this.forward = new int[size];
+			this.backward = new int[size];
+		}
+
+		/**
+		 * Adds the edits turning A[ALO..AHI) into B[BLO..BHI).
+		 */
+		void compare(int aLo, int aHi, int bLo, int bHi) {
+			while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+				aLo++;
+				bLo++;
+			}
+			while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+				aHi--;
+				bHi--;
+			}
+			if (aLo == aHi || bLo == bHi) {
+				if (aLo < aHi || bLo < bHi) {
+					add(aLo, aHi, bLo, bHi);
+				}
+				return;
+			}
+			long split = middleSnake(aLo, aHi, bLo, bHi);
+			if (split < 0) {
+				add(aLo, aHi, bLo, bHi);
+				return;
+			}
+			int x = (int) (split >>> 32), y = (int) split;
+			compare(aLo, x, bLo, y);
+			compare(x, aHi, y, bHi);
+		}
+
+		private void add(int aStart, int aEnd, int bStart, int bEnd) {
+			if (!edits.isEmpty()) {
+				Edit last = edits.get(edits.size() - 1);
+				if (last.aEnd == aStart && last.bEnd == bStart) {
+					edits.set(edits.size() - 1, new Edit(last.aStart, aEnd, last.bStart, bEnd));
+					return;
+				}
+			}
+			edits.add(new Edit(aStart, aEnd, bStart, bEnd));
+		}
+
+		/**
+		 * Returns a point (x, y), packed as x << 32 | y, on a shortest edit path
+		 * from (ALO, BLO) to (AHI, BHI) where the forward and backward searches
+		 * meet, or -1 if the two ranges have no line in common. Both ranges are
+		 * non-empty and differ at both ends.
+		 */
+		private long middleSnake(int aLo, int aHi, int bLo, int bHi) {
+			int n = aHi - aLo, m = bHi - bLo;
+			int delta = n - m;
+			boolean odd = (delta & 1) != 0;
+			int maxD = (n + m + 1) / 2;
+			int offset = maxD + 1;
+			Arrays.fill(forward, 0, 2 * offset + 1, -1);
+			Arrays.fill(backward, 0, 2 * offset + 1, -1);
+			forward[offset + 1] = 0;
+			backward[offset + 1] = 0;
+			// Diagonals that ran off the edit graph are trimmed from the search.
+			int forwardStart = 0, forwardEnd = 0, backwardStart = 0, backwardEnd = 0;
+			for (int d = 0; d < maxD; d++) {
+				if (d == MAX_COST) {
+					return furthest(aLo, bLo, n, m, d, offset);
+				}
+				for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+					int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+							? forward[offset + k + 1]
+							: forward[offset + k - 1] + 1;
+					int y = x - k;
+					while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+						x++;
+						y++;
+					}
+					forward[offset + k] = x;
+					if (x > n) {
+						forwardEnd += 2;
+					} else if (y > m) {
+						forwardStart += 2;
+					} else if (odd) {
+						int back = offset + delta - k;
+						if (back >= 0 && back <= 2 * offset && backward[back] >= 0 && x >= n - backward[back]) {
+							return (long) (aLo + x) << 32 | (bLo + y);
+						}
+					}
+				}
+				for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+					int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+							? backward[offset + k + 1]
+							: backward[offset + k - 1] + 1;
+					int y = x - k;
+					while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+						x++;
+						y++;
+					}
+					backward[offset + k] = x;
+					if (x > n) {
+						backwardEnd += 2;
+					} else if (y > m) {
+						backwardStart += 2;
+					} else if (!odd) {
+						int front = offset + delta - k;
+						if (front >= 0 && front <= 2 * offset && forward[front] >= n - x) {
+							int fx = forward[front];
+							return (long) (aLo + fx) << 32 | (bLo + fx - (delta - k));
+						}
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the point reached by the forward search after D steps that is
+		 * furthest from (ALO, BLO), packed as by middleSnake, or -1 if none is.
+		 */
+		private long furthest(int aLo, int bLo, int n, int m, int d, int offset) {
+			int bestX = 0, bestY = 0;
+			for (int k = -d + 1; k <= d - 1; k += 2) {
+				int x = forward[offset + k], y = x - k;
+				if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > bestX + bestY && (x < n || y < m)) {
+					bestX = x;
+					bestY = y;
+				}
+			}
+			return bestX + bestY == 0 ? -1 : (long) (aLo + bestX) << 32 | (bLo + bestY);
+		}
+	}
+}
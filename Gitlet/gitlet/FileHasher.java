@@ -0,0 +1,56 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * FileHasher computes the SHA-1 ID of a file version. Files are streamed
+ * through a FileChannel in fixed size chunks using one reusable direct buffer,
+ * so memory use does not depend on the size of the file and files larger than
+ * 2 GB can be hashed.
+ */
+class FileHasher {
+	/* Size of the chunks files are read in. */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/* Reusable read buffer and digest for the thread doing the hashing. */
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("System does not support SHA-1");
+		}
+	});
+
+	private FileHasher() {
+	}
+
+	/**
+	 * Returns the ID of the version of FILE. Only the contents are hashed, so
+	 * files with the same contents share an ID, whatever they are named.
+	 *
+	 * @param file the file whose contents are hashed.
+	 * @return the 40 digit hex SHA-1 ID.
+	 */
+	static String hash(File file) throws IOException {
+		MessageDigest sha1 = DIGEST.get();
+		sha1.reset();
+		ByteBuffer buffer = BUFFER.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer.clear();
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				sha1.update(buffer);
+				buffer.clear();
+			}
+		}
+		return Codec.toHex(sha1.digest());
+	}
+}
@@ -0,0 +1,787 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * FileMap is the immutable map from file path to version ID held by a commit.
+ * Paths are relative to the working directory, with '/' between directories.
+ *
+ * The map is a tree of directories (see Dir), each the tree object of one
+ * directory of the commit. Within a directory, names are placed by their hash
+ * in a persistent hash array mapped trie: five bits per level, in nodes that
+ * hold only the slots in use. A changed copy, made by with, without or a
+ * Builder, allocates new nodes only along the paths to the changed names and
+ * shares every other node and directory with the original, so a commit costs
+ * memory in proportion to the files it changes rather than the files it
+ * tracks. Callers get the map itself as a read-only view; nothing is copied to
+ * protect it.
+ *
+ * Two maps are compared without visiting the directories they share, or whose
+ * tree IDs are equal; see compare.
+ */
+final class FileMap extends AbstractMap<String, String> {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	/* The map with no files. */
+	static final FileMap EMPTY = new FileMap(Dir.EMPTY);
+
+	private final Dir root;
+	private Set<Map.Entry<String, String>> entries;
+
+	FileMap(Dir root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns a FileMap holding the entries of MAP.
+	 */
+	static FileMap of(Map<String, String> map) {
+		if (map instanceof FileMap) {
+			return (FileMap) map;
+		}
+		Builder builder = new Builder(EMPTY);
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			builder.put(entry.getKey(), entry.getValue());
+		}
+		return builder.build();
+	}
+
+	/* QUERIES */
+
+	/**
+	 * Returns the top directory of the map.
+	 */
+	Dir root() {
+		return root;
+	}
+
+	/**
+	 * Returns the ID of the tree object of the top directory.
+	 */
+	String treeId() {
+		return root.id();
+	}
+
+	@Override
+	public int size() {
+		return root.files;
+	}
+
+	@Override
+	public String get(Object key) {
+		Object value = key instanceof String ? lookup(root, (String) key) : null;
+		return value instanceof String ? (String) value : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		if (entries == null) {
+			entries = new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new FileIterator(root);
+				}
+
+				@Override
+				public int size() {
+					return root.files;
+				}
+			};
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns what PATH names below DIR: a version ID, a Dir, or null.
+	 */
+	private static Object lookup(Dir dir, String path) {
+		int start = 0;
+		while (true) {
+			int slash = path.indexOf('/', start);
+			Object value = dir.get(slash < 0 ? path.substring(start) : path.substring(start, slash));
+			if (slash < 0) {
+				return value;
+			} else if (!(value instanceof Dir)) {
+				return null;
+			}
+			dir = (Dir) value;
+			start = slash + 1;
+		}
+	}
+
+	/**
+	 * Returns the entry for NAME, whose hash is HASH, in SLOT, a slot at depth
+	 * SHIFT / BITS, or null if there is none.
+	 */
+	private static Entry find(Object slot, String name, int hash, int shift) {
+		while (slot instanceof Node) {
+			Node node = (Node) slot;
+			int bit = bit(hash, shift);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			slot = node.slots[index(node.bitmap, bit)];
+			shift += BITS;
+		}
+		if (slot instanceof Entry) {
+			Entry entry = (Entry) slot;
+			return entry.key.equals(name) ? entry : null;
+		} else if (slot instanceof Collision) {
+			for (Entry entry : ((Collision) slot).entries) {
+				if (entry.key.equals(name)) {
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+
+	/* UPDATES */
+
+	/**
+	 * Returns this map with PATH mapped to ID.
+	 */
+	FileMap with(String path, String id) {
+		return new Builder(this).put(path, id).build();
+	}
+
+	/**
+	 * Returns this map without PATH.
+	 */
+	FileMap without(String path) {
+		return new Builder(this).remove(path).build();
+	}
+
+	/**
+	 * Builder makes a changed copy of a FileMap. Nodes it creates belong to it
+	 * and are changed in place by later updates, so a run of updates allocates
+	 * each new node once; nodes of the original map are never changed.
+	 */
+	static final class Builder {
+		private Dir root;
+		private Object owner = new Object();
+
+		Builder(FileMap base) {
+			this.root = base.root;
+		}
+
+		/**
+		 * Maps PATH to ID. A file or directory in the way of PATH is replaced.
+		 */
+		Builder put(String path, String id) {
+			root = put(root, path, 0, id);
+			return this;
+		}
+
+		private Dir put(Dir dir, String path, int start, String id) {
+			int slash = path.indexOf('/', start);
+			if (slash < 0) {
+				return dir.with(path.substring(start), id, owner);
+			}
+			String name = path.substring(start, slash);
+			Object current = dir.get(name);
+			Dir child = put(current instanceof Dir ? (Dir) current : Dir.EMPTY, path, slash + 1, id);
+			return dir.with(name, child, owner);
+		}
+
+		/**
+		 * Removes the file PATH, if present. Directories left empty are removed
+		 * too.
+		 */
+		Builder remove(String path) {
+			root = remove(root, path, 0);
+			return this;
+		}
+
+		private Dir remove(Dir dir, String path, int start) {
+			int slash = path.indexOf('/', start);
+			String name = slash < 0 ? path.substring(start) : path.substring(start, slash);
+			Object current = dir.get(name);
+			if (slash < 0) {
+				return current instanceof String ? dir.without(name, owner) : dir;
+			} else if (!(current instanceof Dir)) {
+				return dir;
+			}
+			Dir child = remove((Dir) current, path, slash + 1);
+			return child.files == 0 ? dir.without(name, owner) : dir.with(name, child, owner);
+		}
+
+		/**
+		 * Returns the number of files in the map being built.
+		 */
+		int size() {
+			return root.files;
+		}
+
+		/**
+		 * Returns the map built so far. Later updates through this builder do not
+		 * change it.
+		 */
+		FileMap build() {
+			owner = new Object();
+			return new FileMap(root);
+		}
+	}
+
+	/* COMPARISON */
+
+	/**
+	 * Receives the paths that differ between two maps.
+	 */
+	interface Visitor {
+		/**
+		 * Called for PATH, which maps to OLDID in the first map and NEWID in the
+		 * second; either is null where the path is absent.
+		 */
+		void changed(String path, String oldId, String newId);
+	}
+
+	/**
+	 * Calls VISITOR for every path whose version differs between OLD and
+	 * CURRENT, in no particular order. Directories and nodes shared by the two
+	 * maps, and directories with the same tree ID, are skipped without being
+	 * visited, so comparing a commit with its parent takes time in proportion to
+	 * the changes between them.
+	 */
+	static void compare(FileMap old, FileMap current, Visitor visitor) {
+		compare("", old.root, current.root, visitor);
+	}
+
+	private static void compare(String prefix, Dir old, Dir current, Visitor visitor) {
+		if (!same(old, current)) {
+			compare(old.node, current.node, 0, (name, a, b) -> compare(prefix + name, a, b, visitor));
+		}
+	}
+
+	/**
+	 * Reports the files under PATH, which is the file or directory OLD in the
+	 * first map and CURRENT in the second, that differ.
+	 */
+	private static void compare(String path, Object old, Object current, Visitor visitor) {
+		if (!(old instanceof Dir) && !(current instanceof Dir)) {
+			visitor.changed(path, (String) old, (String) current);
+			return;
+		}
+		if (old instanceof String) {
+			visitor.changed(path, (String) old, null);
+		} else if (current instanceof String) {
+			visitor.changed(path, null, (String) current);
+		}
+		compare(path + "/", old instanceof Dir ? (Dir) old : Dir.EMPTY,
+				current instanceof Dir ? (Dir) current : Dir.EMPTY, visitor);
+	}
+
+	/**
+	 * Receives the names that differ between two directories, with what each
+	 * maps to: a version ID, a Dir, or null.
+	 */
+	private interface SlotVisitor {
+		void changed(String name, Object old, Object current);
+	}
+
+	private static void compare(Object old, Object current, int shift, SlotVisitor visitor) {
+		if (old == current) {
+			return;
+		} else if (old instanceof Node && current instanceof Node) {
+			Node a = (Node) old, b = (Node) current;
+			for (int bits = a.bitmap | b.bitmap; bits != 0; bits &= bits - 1) {
+				int bit = bits & -bits;
+				compare((a.bitmap & bit) == 0 ? null : a.slots[index(a.bitmap, bit)],
+						(b.bitmap & bit) == 0 ? null : b.slots[index(b.bitmap, bit)], shift + BITS, visitor);
+			}
+			return;
+		}
+		EntryIterator oldEntries = new EntryIterator(old);
+		while (oldEntries.hasNext()) {
+			Entry entry = oldEntries.next();
+			Entry other = find(current, entry.key, entry.hash, shift);
+			if (other == null || !same(other.value, entry.value)) {
+				visitor.changed(entry.key, entry.value, other == null ? null : other.value);
+			}
+		}
+		EntryIterator newEntries = new EntryIterator(current);
+		while (newEntries.hasNext()) {
+			Entry entry = newEntries.next();
+			if (find(old, entry.key, entry.hash, shift) == null) {
+				visitor.changed(entry.key, null, entry.value);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether A and B, each a version ID or a Dir, are known to hold the
+	 * same files. Directories are compared by tree ID only once both IDs are
+	 * known, so a comparison never hashes a directory.
+	 */
+	private static boolean same(Object a, Object b) {
+		if (a == b) {
+			return true;
+		} else if (a instanceof Dir && b instanceof Dir) {
+			String id = ((Dir) a).id, otherId = ((Dir) b).id;
+			return id != null && id.equals(otherId);
+		}
+		return a instanceof String && a.equals(b);
+	}
+
+	/* DIRECTORIES */
+
+	/**
+	 * One directory: a trie from the name of each entry to a version ID, for a
+	 * file, or to a Dir, for a subdirectory. Its tree ID is the SHA-1 of its
+	 * tree object (see Codec.writeTree), which names the ID of every entry, so
+	 * equal IDs mean equal contents all the way down. The ID is computed when
+	 * first asked for, or given when the tree is read from the store.
+	 */
+	static final class Dir {
+		/* The directory with no entries. */
+		static final Dir EMPTY = new Dir(new Node(0, new Object[0], null), 0, 0, null);
+
+		private final Node node;
+		/* Number of entries directly in the directory. */
+		private final int count;
+		/* Number of files anywhere below the directory. */
+		private final int files;
+		private volatile String id;
+
+		private Dir(Node node, int count, int files, String id) {
+			this.node = node;
+			this.count = count;
+			this.files = files;
+			this.id = id;
+		}
+
+		/**
+		 * Returns the directory with the entries NAMES, mapped to the matching
+		 * VALUES, whose tree ID is ID.
+		 */
+		static Dir of(List<String> names, List<Object> values, String id) {
+			Editor editor = new Editor(new Object());
+			Node node = EMPTY.node;
+			int files = 0;
+			for (int i = 0; i < names.size(); i++) {
+				node = (Node) editor.insert(node, new Entry(names.get(i), values.get(i)), 0);
+				files += files(values.get(i));
+			}
+			return new Dir(node, editor.added, files, id);
+		}
+
+		/**
+		 * Returns the version ID or Dir that NAME maps to, or null.
+		 */
+		Object get(String name) {
+			Entry entry = find(node, name, name.hashCode(), 0);
+			return entry == null ? null : entry.value;
+		}
+
+		/**
+		 * Returns the number of entries directly in the directory.
+		 */
+		int size() {
+			return count;
+		}
+
+		/**
+		 * Returns the tree ID of the directory.
+		 */
+		String id() {
+			if (id == null) {
+				id = Codec.treeId(this);
+			}
+			return id;
+		}
+
+		/**
+		 * Returns the entries directly in the directory, in name order.
+		 */
+		List<Map.Entry<String, Object>> entries() {
+			List<Map.Entry<String, Object>> result = new ArrayList<>(count);
+			EntryIterator iterator = new EntryIterator(node);
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				result.add(new AbstractMap.SimpleImmutableEntry<>(entry.key, entry.value));
+			}
+			result.sort(Map.Entry.comparingByKey());
+			return result;
+		}
+
+		/**
+		 * Returns this directory with NAME mapped to VALUE, changing in place
+		 * the nodes that belong to OWNER.
+		 */
+		private Dir with(String name, Object value, Object owner) {
+			Object old = get(name);
+			if (same(old, value)) {
+				return this;
+			}
+			Editor editor = new Editor(owner);
+			Node result = (Node) editor.insert(node, new Entry(name, value), 0);
+			return new Dir(result, count + editor.added, files - files(old) + files(value), null);
+		}
+
+		/**
+		 * Returns this directory without NAME, changing in place the nodes that
+		 * belong to OWNER.
+		 */
+		private Dir without(String name, Object owner) {
+			Object old = get(name);
+			if (old == null) {
+				return this;
+			}
+			Object result = new Editor(owner).delete(node, name, name.hashCode(), 0);
+			Node rest = result == null ? new Node(0, new Object[0], owner) : (Node) result;
+			return new Dir(rest, count - 1, files - files(old), null);
+		}
+
+		private static int files(Object value) {
+			return value == null ? 0 : value instanceof Dir ? ((Dir) value).files : 1;
+		}
+	}
+
+	/* NODES */
+
+	private static int bit(int hash, int shift) {
+		return shift >= Integer.SIZE ? 1 : 1 << ((hash >>> shift) & MASK);
+	}
+
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap & (bit - 1));
+	}
+
+	/**
+	 * An inner node: one slot, in bit order, for each bit set in BITMAP. A slot
+	 * holds a Node, an Entry or a Collision. Only the builder named by OWNER
+	 * may change a node, and only before it builds its map.
+	 */
+	private static final class Node {
+		int bitmap;
+		Object[] slots;
+		final Object owner;
+
+		Node(int bitmap, Object[] slots, Object owner) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * One entry of a directory: a file, whose value is its version ID, or a
+	 * subdirectory, whose value is its Dir.
+	 */
+	private static final class Entry {
+		final String key;
+		final Object value;
+		final int hash;
+
+		Entry(String key, Object value) {
+			this.key = key;
+			this.value = value;
+			this.hash = key.hashCode();
+		}
+	}
+
+	/**
+	 * The entries of names whose hashes are all equal.
+	 */
+	private static final class Collision {
+		final int hash;
+		final Entry[] entries;
+
+		Collision(int hash, Entry[] entries) {
+			this.hash = hash;
+			this.entries = entries;
+		}
+
+		Collision with(Entry entry) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].key.equals(entry.key)) {
+					if (same(entries[i].value, entry.value)) {
+						return this;
+					}
+					Entry[] changed = entries.clone();
+					changed[i] = entry;
+					return new Collision(hash, changed);
+				}
+			}
+			Entry[] added = Arrays.copyOf(entries, entries.length + 1);
+			added[entries.length] = entry;
+			return new Collision(hash, added);
+		}
+
+		/**
+		 * Returns this collision without NAME: itself if NAME is not in it, and
+		 * the remaining entry if only one is left.
+		 */
+		Object without(String name) {
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].key.equals(name)) {
+					if (entries.length == 2) {
+						return entries[1 - i];
+					}
+					Entry[] left = new Entry[entries.length - 1];
+					System.arraycopy(entries, 0, left, 0, i);
+					System.arraycopy(entries, i + 1, left, i, left.length - i);
+					return new Collision(hash, left);
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Editor inserts and deletes the entries of one trie, changing in place the
+	 * nodes that belong to OWNER and counting the entries it adds.
+	 */
+	private static final class Editor {
+		private final Object owner;
+		/* Entries added, less entries deleted. */
+		int added;
+
+		Editor(Object owner) {
+			this.owner = owner;
+		}
+
+		private Node editable(Node node) {
+			return node.owner == owner ? node : new Node(node.bitmap, node.slots.clone(), owner);
+		}
+
+		Object insert(Object slot, Entry entry, int shift) {
+			Node node = (Node) slot;
+			int bit = bit(entry.hash, shift);
+			int index = index(node.bitmap, bit);
+			if ((node.bitmap & bit) == 0) {
+				added++;
+				Object[] slots = new Object[node.slots.length + 1];
+				System.arraycopy(node.slots, 0, slots, 0, index);
+				slots[index] = entry;
+				System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+				return setSlots(node, node.bitmap | bit, slots);
+			}
+			Object current = node.slots[index];
+			Object replacement;
+			if (current instanceof Node) {
+				replacement = insert(current, entry, shift + BITS);
+			} else if (current instanceof Entry && ((Entry) current).key.equals(entry.key)) {
+				if (same(((Entry) current).value, entry.value)) {
+					return node;
+				}
+				replacement = entry;
+			} else if (current instanceof Collision && ((Collision) current).hash == entry.hash) {
+				replacement = ((Collision) current).with(entry);
+				if (((Collision) replacement).entries.length > ((Collision) current).entries.length) {
+					added++;
+				}
+			} else {
+				added++;
+				replacement = split(current, entry, shift + BITS);
+			}
+			if (replacement == current) {
+				return node;
+			}
+			Node result = editable(node);
+			result.slots[index] = replacement;
+			return result;
+		}
+
+		private Node setSlots(Node node, int bitmap, Object[] slots) {
+			if (node.owner == owner) {
+				node.bitmap = bitmap;
+				node.slots = slots;
+				return node;
+			}
+			return new Node(bitmap, slots, owner);
+		}
+
+		/**
+		 * Returns a slot at depth SHIFT / BITS holding both CURRENT, an entry or
+		 * collision, and ENTRY, whose hash differs or whose name does.
+		 */
+		private Object split(Object current, Entry entry, int shift) {
+			int currentHash = current instanceof Entry ? ((Entry) current).hash : ((Collision) current).hash;
+			if (currentHash == entry.hash) {
+				return new Collision(entry.hash, new Entry[] { (Entry) current, entry });
+			}
+			int currentBit = bit(currentHash, shift), entryBit = bit(entry.hash, shift);
+			if (currentBit == entryBit) {
+				return new Node(currentBit, new Object[] { split(current, entry, shift + BITS) }, owner);
+			}
+			Object[] slots = Integer.compareUnsigned(currentBit, entryBit) < 0 ? new Object[] { current, entry }
+					: new Object[] { entry, current };
+			return new Node(currentBit | entryBit, slots, owner);
+		}
+
+		/**
+		 * Removes NAME from SLOT, a node at depth SHIFT / BITS, returning the
+		 * node, a lone entry or collision left to be inlined in the parent, or
+		 * null if nothing is left.
+		 */
+		Object delete(Object slot, String name, int hash, int shift) {
+			Node node = (Node) slot;
+			int bit = bit(hash, shift);
+			if ((node.bitmap & bit) == 0) {
+				return node;
+			}
+			int index = index(node.bitmap, bit);
+			Object current = node.slots[index];
+			Object replacement;
+			if (current instanceof Node) {
+				replacement = delete(current, name, hash, shift + BITS);
+			} else if (current instanceof Entry) {
+				if (!((Entry) current).key.equals(name)) {
+					return node;
+				}
+				added--;
+				replacement = null;
+			} else {
+				replacement = ((Collision) current).without(name);
+				if (replacement != current) {
+					added--;
+				}
+			}
+			if (replacement == current) {
+				return node;
+			}
+			if (replacement == null) {
+				if (node.slots.length == 1) {
+					return null;
+				}
+				Object[] slots = new Object[node.slots.length - 1];
+				System.arraycopy(node.slots, 0, slots, 0, index);
+				System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+				Node result = setSlots(node, node.bitmap & ~bit, slots);
+				return shift > 0 && slots.length == 1 && !(slots[0] instanceof Node) ? slots[0] : result;
+			}
+			if (shift > 0 && node.slots.length == 1 && !(replacement instanceof Node)) {
+				return replacement;
+			}
+			Node result = editable(node);
+			result.slots[index] = replacement;
+			return result;
+		}
+	}
+
+	/**
+	 * Iterates over the entries under a slot, depth first.
+	 */
+	private static final class EntryIterator implements Iterator<Entry> {
+		private final Deque<Object> pending = new ArrayDeque<>();
+		private Entry[] collision;
+		private int collisionIndex;
+		private Entry next;
+
+		EntryIterator(Object slot) {
+			if (slot != null) {
+				pending.push(slot);
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null) {
+				if (collision != null && collisionIndex < collision.length) {
+					next = collision[collisionIndex++];
+					return;
+				}
+				collision = null;
+				if (pending.isEmpty()) {
+					return;
+				}
+				Object slot = pending.pop();
+				if (slot instanceof Node) {
+					Object[] slots = ((Node) slot).slots;
+					for (int i = slots.length - 1; i >= 0; i--) {
+						pending.push(slots[i]);
+					}
+				} else if (slot instanceof Entry) {
+					next = (Entry) slot;
+				} else {
+					collision = ((Collision) slot).entries;
+					collisionIndex = 0;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry result = next;
+			advance();
+			return result;
+		}
+	}
+
+	/**
+	 * Iterates over the files below a directory, with their full paths,
+	 * directory by directory.
+	 */
+	private static final class FileIterator implements Iterator<Map.Entry<String, String>> {
+		private final Deque<EntryIterator> iterators = new ArrayDeque<>();
+		private final Deque<String> prefixes = new ArrayDeque<>();
+		private Map.Entry<String, String> next;
+
+		FileIterator(Dir root) {
+			iterators.push(new EntryIterator(root.node));
+			prefixes.push("");
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && !iterators.isEmpty()) {
+				EntryIterator top = iterators.peek();
+				if (!top.hasNext()) {
+					iterators.pop();
+					prefixes.pop();
+					continue;
+				}
+				Entry entry = top.next();
+				String path = prefixes.peek() + entry.key;
+				if (entry.value instanceof Dir) {
+					iterators.push(new EntryIterator(((Dir) entry.value).node));
+					prefixes.push(path + "/");
+				} else {
+					next = new AbstractMap.SimpleImmutableEntry<>(path, (String) entry.value);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> result = next;
+			advance();
+			return result;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package gitlet;
+
+/**
+ * General exception indicating a Gitlet error. The message of the exception is
+ * the error message to be printed to the user; the command is abandoned without
+ * saving the repository.
+ */
+class GitletException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	GitletException(String msg) {
+		super(msg);
+	}
+}
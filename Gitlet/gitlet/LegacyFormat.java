@@ -0,0 +1,81 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * LegacyFormat reads the repo.bin file written by older versions of Gitlet,
+ * which serialized the whole Repository (and every Commit in it) with Java
+ * object serialization. It is only used to migrate such repositories to the
+ * current on-disk format.
+ */
+class LegacyFormat {
+	/* Name of the file older versions stored the whole repository in. */
+	static final String REPO = "repo.bin";
+
+	/**
+	 * Mirror of the fields of the old serialized Repository.
+	 */
+	static class LegacyRepository implements Serializable {
+		static final long serialVersionUID = 12345678901L;
+
+		HashMap<String, String> branches;
+		HashMap<String, LegacyCommit> tree;
+		String head;
+		String currentBranch;
+		List<String> deletions;
+	}
+
+	/**
+	 * Mirror of the fields of the old serialized Commit.
+	 */
+	static class LegacyCommit implements Serializable {
+		static final long serialVersionUID = 12345678900L;
+
+		String id;
+		String parent;
+		String message;
+		Date commitDate;
+		HashMap<String, String> contents;
+	}
+
+	/**
+	 * Reads the old repository stored in FILE.
+	 */
+	static LegacyRepository read(File file) throws IOException {
+		try (ObjectInputStream in = new LegacyInputStream(new FileInputStream(file))) {
+			return (LegacyRepository) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Object stream that decodes the old gitlet.Repository and gitlet.Commit
+	 * classes into their legacy mirrors, which have identical fields.
+	 */
+	private static class LegacyInputStream extends ObjectInputStream {
+		LegacyInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass desc = super.readClassDescriptor();
+			if (desc.getName().equals("gitlet.Repository")) {
+				return ObjectStreamClass.lookup(LegacyRepository.class);
+			} else if (desc.getName().equals("gitlet.Commit")) {
+				return ObjectStreamClass.lookup(LegacyCommit.class);
+			}
+			return desc;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * LogWriter renders commits for log and global-log. Every commit goes through
+ * one buffered writer, which is flushed once at the end, and dates are
+ * formatted with a single shared (thread-safe) formatter. It also applies the
+ * --max-count and --since limits, telling the caller when to stop walking.
+ */
+class LogWriter {
+	/* Format of commit dates in the log. */
+	static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out;
+
+	/* Number of commits still to be written. */
+	private int remaining;
+
+	/* Commits older than this time, in epoch milliseconds, are not written. */
+	private final long since;
+
+	/**
+	 * Creates a writer to OUT that writes at most MAXCOUNT commits, all made at or
+	 * after SINCE (in epoch milliseconds).
+	 */
+	LogWriter(OutputStream out, int maxCount, long since) {
+		this.out = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+		this.remaining = maxCount;
+		this.since = since;
+	}
+
+	/**
+	 * Returns whether a commit made at TIMESTAMP passes the --since limit.
+	 */
+	boolean accepts(long timestamp) {
+		return timestamp >= since;
+	}
+
+	/**
+	 * Returns whether --max-count commits have been written already.
+	 */
+	boolean isFull() {
+		return remaining <= 0;
+	}
+
+	/**
+	 * Writes one commit, followed by a blank line.
+	 */
+	void write(Commit commit) throws IOException {
+		out.write("===\nCommit ");
+		out.write(commit.getId());
+		out.write('\n');
+		DATE_FORMAT.formatTo(Instant.ofEpochMilli(commit.getTimestamp()), out);
+		out.write('\n');
+		out.write(commit.getMessage());
+		out.write("\n\n");
+		remaining--;
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Parses the argument of --since, either a date ("2017-04-01") or a date and
+	 * time ("2017-04-01 13:45:00") in the local time zone.
+	 *
+	 * @return the time in epoch milliseconds, or null if TEXT is not a date.
+	 */
+	static Long parseDate(String text) {
+		try {
+			if (text.length() == "yyyy-MM-dd".length()) {
+				return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			}
+			return LocalDateTime.parse(text, DATE_FORMAT).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+}
@@ -1,13 +1,13 @@
 package gitlet;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.FileOutputStream;
-
-import static gitlet.Repository.*;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Driver class for Gitlet, the tiny stupid version-control system.
@@ -16,13 +16,19 @@ import static gitlet.Repository.*;
  */
 public class Main {
 
-	private static final String REPO = "repo.bin";
 	private static final String INCORRECT_OPERANDS_ERROR = "Incorrect operands.";
 
 	private static Repository repository;
 	private static int commandLength;
 	private static String[] argList;
 
+	// Limits given to log and global-log.
+	private static int maxCount;
+	private static long since;
+
+	// True while running a batch, which saves only at checkpoints and at the end.
+	private static boolean batching;
+
 	/**
 	 * Helper method that checks that the length of the argument list is the correct
 	 * length. This method is to be called after verifying the command is a valid
@@ -51,8 +57,10 @@ public class Main {
 	}
 
 	private static void add() {
-		if (checkOperands(2)) {
-			repository.add(argList[1]);
+		if (commandLength < 2) {
+			System.out.println(INCORRECT_OPERANDS_ERROR);
+		} else {
+			repository.add(Arrays.asList(argList).subList(1, commandLength));
 			save();
 		}
 	}
@@ -72,19 +80,49 @@ public class Main {
 	}
 
 	private static void log() {
-		if (checkOperands(1)) {
-			repository.log();
+		if (parseLogOptions()) {
+			repository.log(maxCount, since);
 		}
 	}
 
 	private static void globalLog() {
-		if (checkOperands(1)) {
-			repository.globalLog();
+		if (parseLogOptions()) {
+			repository.globalLog(maxCount, since);
 		}
 	}
 
+	/**
+	 * Parses the optional "--max-count N" and "--since DATE" operands of log and
+	 * global-log into maxCount and since. Prints the INCORRECT_OPERANDS_ERROR
+	 * message if they are malformed.
+	 *
+	 * @return true if the operands are valid. false otherwise.
+	 */
+	private static boolean parseLogOptions() {
+		maxCount = Integer.MAX_VALUE;
+		since = Long.MIN_VALUE;
+		for (int i = 1; i < commandLength; i += 2) {
+			if (i + 1 >= commandLength) {
+				System.out.println(INCORRECT_OPERANDS_ERROR);
+				return false;
+			}
+			String value = argList[i + 1];
+			if (argList[i].equals("--max-count") && value.matches("\\d{1,9}")) {
+				maxCount = Integer.parseInt(value);
+			} else if (argList[i].equals("--since") && LogWriter.parseDate(value) != null) {
+				since = LogWriter.parseDate(value);
+			} else {
+				System.out.println(INCORRECT_OPERANDS_ERROR);
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private static void find() {
-		if (checkOperands(2)) {
+		if (commandLength == 3 && argList[1].equals("--word")) {
+			repository.findWords(argList[2]);
+		} else if (checkOperands(2)) {
 			repository.find(argList[1]);
 		}
 	}
@@ -95,6 +133,21 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Prints the differences between the working files and the staging area, or
+	 * with --staged between the staging area and the head commit, or between the
+	 * two commits given.
+	 */
+	private static void diff() {
+		if (commandLength == 1) {
+			repository.diff();
+		} else if (commandLength == 2 && argList[1].equals("--staged")) {
+			repository.diffStaged();
+		} else if (checkOperands(3)) {
+			repository.diff(argList[1], argList[2]);
+		}
+	}
+
 	private static void checkoutBranch(String branch) {
 		repository.checkoutBranch(branch);
 		save();
@@ -138,17 +191,110 @@ public class Main {
 		}
 	}
 
+	private static void repack() {
+		if (checkOperands(1)) {
+			repository.repack();
+		}
+	}
+
+	private static void gc() {
+		if (commandLength == 2 && argList[1].equals("--now")) {
+			repository.gc(true);
+		} else if (checkOperands(1)) {
+			repository.gc(false);
+		}
+	}
+
 	/**
-	 * Saves the repository to file
+	 * Runs the commands read from the file named by the operand, or from standard
+	 * input if there is none, one command per line, against the loaded
+	 * repository. Operands containing spaces may be written in double quotes, and
+	 * blank lines and lines starting with '#' are skipped. A failing command is
+	 * reported with its line number and the batch carries on. The repository is
+	 * saved once at the end, and whenever a line reads "checkpoint".
 	 */
-	private static void save() {
-		File file = new File(GITLET_DIRECTORY, REPO);
-		try {
-			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-			out.writeObject(repository);
-			out.close();
+	private static void batch() {
+		if (batching) {
+			throw new GitletException("Cannot run a batch inside a batch.");
+		} else if (commandLength != 1 && commandLength != 2) {
+			System.out.println(INCORRECT_OPERANDS_ERROR);
+			return;
+		}
+		batching = true;
+		try (BufferedReader in = commandLength == 1 ? new BufferedReader(new InputStreamReader(System.in))
+				: Files.newBufferedReader(Paths.get(argList[1]))) {
+			String line;
+			for (int lineNumber = 1; (line = in.readLine()) != null; lineNumber++) {
+				try {
+					String[] command = tokenize(line);
+					if (command.length == 0 || command[0].startsWith("#")) {
+						continue;
+					} else if (command.length == 1 && command[0].equals("checkpoint")) {
+						if (repository != null) {
+							repository.save();
+						}
+					} else {
+						execute(repository, command);
+					}
+				} catch (GitletException e) {
+					System.out.println("line " + lineNumber + ": " + e.getMessage());
+				}
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new GitletException("Could not read batch: " + e.getMessage());
+		} finally {
+			batching = false;
+			if (repository != null) {
+				repository.save();
+			}
+		}
+	}
+
+	/**
+	 * Splits a batch line into words at spaces. A word in double quotes may
+	 * contain spaces, and a backslash escapes the next character.
+	 *
+	 * @param line the line to split.
+	 * @return the words of the line.
+	 */
+	private static String[] tokenize(String line) {
+		List<String> words = new ArrayList<>();
+		StringBuilder word = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				word = word == null ? new StringBuilder() : word;
+				word.append(line.charAt(++i));
+			} else if (c == '"') {
+				word = word == null ? new StringBuilder() : word;
+				quoted = !quoted;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (word != null) {
+					words.add(word.toString());
+					word = null;
+				}
+			} else {
+				word = word == null ? new StringBuilder() : word;
+				word.append(c);
+			}
+		}
+		if (quoted) {
+			throw new GitletException("Unterminated quote.");
+		}
+		if (word != null) {
+			words.add(word.toString());
+		}
+		return words.toArray(new String[0]);
+	}
+
+	/**
+	 * Saves the repository to file, unless a batch is running, in which case it
+	 * is saved when the batch ends.
+	 */
+	private static void save() {
+		if (!batching) {
+			repository.save();
 		}
 	}
 
@@ -156,30 +302,69 @@ public class Main {
 	 * Usage: java gitlet.Main ARGS, where ARGS contains <COMMAND> <OPERAND> ....
 	 */
 	public static void main(String... args) {
-		commandLength = args.length;
-		argList = args;
-		if (commandLength == 0) {
-			System.out.println("Please enter a command.");
-			System.exit(0);
+		if (Daemon.forward(args)) {
+			return;
 		}
-		File gitletDir = new File(GITLET_DIRECTORY);
-		if (gitletDir.exists()) {
-			File inFile = new File(gitletDir, REPO);
+		try {
+			if (args.length > 0 && args[0].equals("daemon")) {
+				daemon(args);
+				return;
+			}
+			RepositoryLock lock = RepositoryLock.acquire();
 			try {
-				ObjectInputStream in = new ObjectInputStream(new FileInputStream(inFile));
-				repository = (Repository) in.readObject();
-				in.close();
-			} catch (IOException | ClassNotFoundException e) {
-				// do nothing
+				execute(Repository.load(), args);
+			} finally {
+				if (lock != null) {
+					lock.close();
+				}
 			}
+		} catch (GitletException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts the daemon for the repository in the current directory. Stopping a
+	 * running daemon is handled by the daemon itself.
+	 */
+	private static void daemon(String[] args) {
+		if (args.length == 2 && args[1].equals("--stop")) {
+			throw new GitletException("No gitlet daemon is running.");
+		} else if (args.length != 1) {
+			throw new GitletException(INCORRECT_OPERANDS_ERROR);
+		} else if (Repository.load() == null) {
+			throw new GitletException("Not in an initialized gitlet directory.");
+		}
+		try {
+			Daemon.serve();
+		} catch (IOException e) {
+			throw new GitletException("Could not start the gitlet daemon: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the command ARGS against LOADED, the repository in the current
+	 * directory (null if there is none). Errors are reported by throwing a
+	 * GitletException, leaving the repository on disk untouched.
+	 *
+	 * @param loaded the repository to run the command against.
+	 * @param args   the command and its operands.
+	 * @return the repository after the command, which differs from LOADED for
+	 *         init.
+	 */
+	static Repository execute(Repository loaded, String... args) {
+		repository = loaded;
+		commandLength = args.length;
+		argList = args;
+		if (commandLength == 0) {
+			throw new GitletException("Please enter a command.");
 		}
 		String command = args[0];
 
 		if (command.equals("init")) {
 			init();
 		} else if (repository == null) {
-			System.out.println("Not in an initialized gitlet directory.");
-			System.exit(0);
+			throw new GitletException("Not in an initialized gitlet directory.");
 		} else if (command.equals("status")) {
 			status();
 		} else if (command.equals("global-log")) {
@@ -202,6 +387,8 @@ public class Main {
 			} else {
 				System.out.println(INCORRECT_OPERANDS_ERROR);
 			}
+		} else if (command.equals("diff")) {
+			diff();
 		} else if (command.equals("branch")) {
 			branch();
 		} else if (command.equals("rm-branch")) {
@@ -212,8 +399,15 @@ public class Main {
 			reset();
 		} else if (command.equals("merge")) {
 			merge();
+		} else if (command.equals("repack")) {
+			repack();
+		} else if (command.equals("gc")) {
+			gc();
+		} else if (command.equals("batch")) {
+			batch();
 		} else {
-			System.out.println("No command with that name exists.");
+			throw new GitletException("No command with that name exists.");
 		}
+		return repository;
 	}
 }
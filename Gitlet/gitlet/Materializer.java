@@ -0,0 +1,191 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Materializer copies file contents between the working directory and the
+ * stored versions.
+ *
+ * New versions are written to the versions directory under a temporary name
+ * and renamed into place. Versions that compress well are deflated at the
+ * level set by "compression.level" (default 6, where 0 turns compression off);
+ * see Blob for the format. Copies into and out of the working directory must
+ * stay independent of the stored version, so they are real copies by default.
+ * Setting "materialize = clone" in .gitlet/config makes them copy-on-write
+ * clones (reflinks) instead, for files of at least
+ * "materialize.clone-threshold" bytes, on file systems that support them. The
+ * first failed clone turns cloning off and every copy falls back to an ordinary
+ * one.
+ */
+class Materializer {
+	/* Setting choosing how files are copied: "copy" or "clone". */
+	static final String MODE_KEY = "materialize";
+
+	/* Setting holding the smallest file size, in bytes, worth cloning. */
+	static final String THRESHOLD_KEY = "materialize.clone-threshold";
+
+	/* Setting holding the Deflater level of new versions. */
+	static final String LEVEL_KEY = "compression.level";
+
+	private static final int DEFAULT_LEVEL = 6;
+
+	/*
+	 * Cloning runs an external process, so below this size an ordinary copy is
+	 * faster.
+	 */
+	private static final long DEFAULT_THRESHOLD = 1 << 20;
+
+	/* Smallest size of the files to clone, or -1 if files are never cloned. */
+	private final long cloneThreshold;
+
+	/* Deflater level of new versions, or 0 if they are not compressed. */
+	private final int level;
+
+	/* Whether a clone has failed, so that no more are attempted. */
+	private volatile boolean cloneFailed;
+
+	private Materializer(long cloneThreshold, int level) {
+		this.cloneThreshold = cloneThreshold;
+		this.level = level;
+	}
+
+	/**
+	 * Returns the materializer chosen by CONFIG.
+	 */
+	static Materializer fromConfig(Config config) {
+		long level = config.getLong(LEVEL_KEY, DEFAULT_LEVEL);
+		if (level < 0 || level > 9) {
+			throw new GitletException("Invalid value for " + LEVEL_KEY + " in .gitlet/config: " + level);
+		}
+		String mode = config.get(MODE_KEY, "copy");
+		if (mode.equals("copy")) {
+			return new Materializer(-1, (int) level);
+		} else if (mode.equals("clone")) {
+			return new Materializer(Math.max(0, config.getLong(THRESHOLD_KEY, DEFAULT_THRESHOLD)), (int) level);
+		}
+		throw new GitletException("Invalid value for " + MODE_KEY + " in .gitlet/config: " + mode);
+	}
+
+	/**
+	 * Returns the Deflater level of new versions, or 0 if they are not compressed.
+	 */
+	int level() {
+		return level;
+	}
+
+	/**
+	 * Makes TARGET an independent copy of SOURCE, replacing it if it exists.
+	 */
+	void copy(File source, File target) throws IOException {
+		if (cloneThreshold >= 0 && !cloneFailed && source.length() >= cloneThreshold && clone(source, target)) {
+			return;
+		}
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Writes the contents of the version stored in VERSION to the working file
+	 * TARGET, replacing it if it exists.
+	 */
+	void restore(File version, File target) throws IOException {
+		if (!Blob.isEncoded(version)) {
+			copy(version, target);
+			return;
+		}
+		try (InputStream in = Blob.open(version)) {
+			Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes the contents of the packed version DATA to the working file TARGET,
+	 * replacing it if it exists. A raw version is written straight from the
+	 * mapped pack.
+	 */
+	void restore(ByteBuffer data, File target) throws IOException {
+		if (Blob.isEncoded(data)) {
+			try (InputStream in = Blob.open(data)) {
+				Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer remaining = data.slice();
+			while (remaining.hasRemaining()) {
+				channel.write(remaining);
+			}
+		}
+	}
+
+	/**
+	 * Stores the working file SOURCE as TARGET, a file in the versions directory,
+	 * unless TARGET already exists. The version is written under a temporary name
+	 * and then renamed, so TARGET never holds a partial version.
+	 */
+	void store(File source, File target) throws IOException {
+		if (target.exists()) {
+			return;
+		}
+		File temp = Files.createTempFile(target.getParentFile().toPath(), target.getName(), ".tmp").toFile();
+		try {
+			if (level > 0 && Blob.isCompressible(source)) {
+				try (OutputStream out = new FileOutputStream(temp)) {
+					Blob.write(source, out, Blob.DEFLATE, level);
+				}
+			} else if (Blob.isEncoded(source)) {
+				try (OutputStream out = new FileOutputStream(temp)) {
+					Blob.write(source, out, Blob.STORED, 0);
+				}
+			} else {
+				copy(source, temp);
+			}
+			move(temp, target);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Moves SOURCE, which nothing else refers to, to TARGET. If TARGET already
+	 * exists it holds the same version, and SOURCE is just deleted.
+	 */
+	void move(File source, File target) throws IOException {
+		if (target.exists()) {
+			Files.delete(source.toPath());
+			return;
+		}
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private boolean clone(File source, File target) {
+		ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", source.getPath(), target.getPath());
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		try {
+			if (builder.start().waitFor() == 0) {
+				return true;
+			}
+		} catch (IOException e) {
+			// No cp on this system.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		cloneFailed = true;
+		return false;
+	}
+}
@@ -0,0 +1,136 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Merge combines two versions of a file that both changed since their split
+ * point, line by line.
+ *
+ * Each side is diffed against the split point version (see Diff). Changes are
+ * then taken in order of where they start in the split point version; changes
+ * from both sides that overlap or touch form one region. A region changed on
+ * only one side takes that side, and a region both sides changed alike takes
+ * either. Otherwise the lines the two sides share at the start and end of the
+ * region are kept, and only the rest is written as a conflict:
+ *
+ * <<<<<<< HEAD
+ * lines of the current branch
+ * =======
+ * lines of the given branch
+ * >>>>>>>
+ *
+ * The result is written straight to a stream as it is worked out.
+ */
+final class Merge {
+	private static final byte[] START = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] END = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+	private Merge() {
+	}
+
+	/**
+	 * Writes to OUT the merge of OURS and THEIRS, two versions of a file derived
+	 * from BASE.
+	 *
+	 * @return whether the merge had no conflict.
+	 */
+	static boolean merge(byte[] base, byte[] ours, byte[] theirs, OutputStream out) throws IOException {
+		Diff.Lines[] lines = Diff.split(base, ours, theirs);
+		Diff.Lines baseLines = lines[0], ourLines = lines[1], theirLines = lines[2];
+		List<Diff.Edit> ourEdits = Diff.diff(baseLines, ourLines);
+		List<Diff.Edit> theirEdits = Diff.diff(baseLines, theirLines);
+
+		boolean clean = true;
+		int i = 0, j = 0;
+		int done = 0, ourShift = 0, theirShift = 0;
+		while (i < ourEdits.size() || j < theirEdits.size()) {
+			int start = j == theirEdits.size()
+					|| (i < ourEdits.size() && ourEdits.get(i).aStart <= theirEdits.get(j).aStart)
+							? ourEdits.get(i).aStart
+							: theirEdits.get(j).aStart;
+			int end = start;
+			int firstOurs = i, firstTheirs = j;
+			boolean grew = true;
+			while (grew) {
+				grew = false;
+				while (i < ourEdits.size() && ourEdits.get(i).aStart <= end) {
+					end = Math.max(end, ourEdits.get(i).aEnd);
+					i++;
+					grew = true;
+				}
+				while (j < theirEdits.size() && theirEdits.get(j).aStart <= end) {
+					end = Math.max(end, theirEdits.get(j).aEnd);
+					j++;
+					grew = true;
+				}
+			}
+			int ourStart = start + ourShift, theirStart = start + theirShift;
+			if (i > firstOurs) {
+				Diff.Edit last = ourEdits.get(i - 1);
+				ourShift = last.bEnd - last.aEnd;
+			}
+			if (j > firstTheirs) {
+				Diff.Edit last = theirEdits.get(j - 1);
+				theirShift = last.bEnd - last.aEnd;
+			}
+			int ourEnd = end + ourShift, theirEnd = end + theirShift;
+
+			baseLines.write(done, start, out);
+			if (j == firstTheirs || ourLines.equals(ourStart, ourEnd, theirLines, theirStart, theirEnd)) {
+				ourLines.write(ourStart, ourEnd, out);
+			} else if (i == firstOurs) {
+				theirLines.write(theirStart, theirEnd, out);
+			} else {
+				clean = false;
+				int prefix = 0, suffix = 0;
+				while (ourStart + prefix < ourEnd && theirStart + prefix < theirEnd
+						&& ourLines.id(ourStart + prefix) == theirLines.id(theirStart + prefix)) {
+					prefix++;
+				}
+				while (ourEnd - suffix > ourStart + prefix && theirEnd - suffix > theirStart + prefix
+						&& ourLines.id(ourEnd - suffix - 1) == theirLines.id(theirEnd - suffix - 1)) {
+					suffix++;
+				}
+				ourLines.write(ourStart, ourStart + prefix, out);
+				conflict(ourLines, ourStart + prefix, ourEnd - suffix, theirLines, theirStart + prefix,
+						theirEnd - suffix, out);
+				ourLines.write(ourEnd - suffix, ourEnd, out);
+			}
+			done = end;
+		}
+		baseLines.write(done, baseLines.size(), out);
+		return clean;
+	}
+
+	/**
+	 * Writes to OUT a conflict between the whole of OURS and the whole of
+	 * THEIRS, either of which may be empty for a deleted file.
+	 */
+	static void conflict(byte[] ours, byte[] theirs, OutputStream out) throws IOException {
+		out.write(START);
+		writeTerminated(ours, out);
+		out.write(SEPARATOR);
+		writeTerminated(theirs, out);
+		out.write(END);
+	}
+
+	private static void writeTerminated(byte[] contents, OutputStream out) throws IOException {
+		out.write(contents);
+		if (contents.length > 0 && contents[contents.length - 1] != '\n') {
+			out.write('\n');
+		}
+	}
+
+	private static void conflict(Diff.Lines ours, int ourStart, int ourEnd, Diff.Lines theirs, int theirStart,
+			int theirEnd, OutputStream out) throws IOException {
+		out.write(START);
+		ours.writeTerminated(ourStart, ourEnd, out);
+		out.write(SEPARATOR);
+		theirs.writeTerminated(theirStart, theirEnd, out);
+		out.write(END);
+	}
+}
@@ -0,0 +1,90 @@
+package gitlet;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * MergeBase finds the split point of two commits: a common ancestor that is
+ * not an ancestor of any other common ancestor.
+ *
+ * Both commits are walked at once through the commit graph, highest generation
+ * number first, marking each commit with the side(s) it can be reached from. A
+ * commit reached from both sides is a common ancestor, and because no commit
+ * can be an ancestor of a commit with a lower or equal generation, the first
+ * such commit taken from the queue is a lowest common ancestor. The walk stops
+ * there, so only the commits newer than the split point are ever visited, and
+ * no commit object is decoded.
+ */
+class MergeBase {
+	/* Flags marking which side a commit was reached from. */
+	private static final int FROM_FIRST = 1;
+	private static final int FROM_SECOND = 2;
+	private static final int FROM_BOTH = FROM_FIRST | FROM_SECOND;
+
+	private MergeBase() {
+	}
+
+	/**
+	 * One commit waiting in the walk queue.
+	 */
+	private static class Node implements Comparable<Node> {
+		final int pos;
+		final int generation;
+		final long timestamp;
+
+		Node(CommitGraph graph, int pos) {
+			this.pos = pos;
+			this.generation = graph.generation(pos);
+			this.timestamp = graph.timestamp(pos);
+		}
+
+		@Override
+		public int compareTo(Node other) {
+			if (generation != other.generation) {
+				return Integer.compare(other.generation, generation);
+			}
+			return Long.compare(other.timestamp, timestamp);
+		}
+	}
+
+	/**
+	 * Returns the ID of the split point of the commits FIRST and SECOND.
+	 *
+	 * @param store the store the commits are read from.
+	 * @param first the full ID of one commit.
+	 * @param second the full ID of the other commit.
+	 * @return the ID of a lowest common ancestor, or null if the commits share no
+	 *         history.
+	 */
+	static String find(ObjectStore store, String first, String second) {
+		if (first.equals(second)) {
+			return first;
+		}
+		CommitGraph graph = store.graph();
+		int firstPos = graph.position(first), secondPos = graph.position(second);
+		HashMap<Integer, Integer> flags = new HashMap<>();
+		PriorityQueue<Node> queue = new PriorityQueue<>();
+		flags.put(firstPos, FROM_FIRST);
+		flags.put(secondPos, FROM_SECOND);
+		queue.add(new Node(graph, firstPos));
+		queue.add(new Node(graph, secondPos));
+
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			int flag = flags.get(node.pos);
+			if (flag == FROM_BOTH) {
+				return graph.id(node.pos);
+			}
+			for (int parent : graph.parents(node.pos)) {
+				Integer old = flags.get(parent);
+				if (old == null) {
+					flags.put(parent, flag);
+					queue.add(new Node(graph, parent));
+				} else if ((old | flag) != old) {
+					flags.put(parent, old | flag);
+				}
+			}
+		}
+		return null;
+	}
+}
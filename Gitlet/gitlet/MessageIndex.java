@@ -0,0 +1,342 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * MessageIndex is an inverted index of commit messages, used by find. It maps
+ * the 64-bit hash of each whole message, and of each word appearing in a
+ * message, to the IDs of the commits with that message or word.
+ *
+ * Like the commit graph, the index has two layers: a memory-mapped base file
+ * with both tables sorted by hash (so a lookup is a binary search followed by
+ * reading one run of postings), and a tail file of (ID, message) records
+ * appended by new commits, which is folded into the base once it grows large.
+ * Since only hashes are stored, callers must check the message of each
+ * candidate commit.
+ */
+class MessageIndex {
+	private static final int BASE_MAGIC = 0x474c4d31; // "GLM1"
+	private static final int TAIL_MAGIC = 0x474c5831; // "GLX1"
+	private static final int VERSION = 1;
+
+	/* Size of the magic number, version, the two table sizes and commit count. */
+	private static final int HEADER_SIZE = 17;
+	/* Hash, offset of the first posting and number of postings. */
+	private static final int SLOT_SIZE = 8 + 4 + 4;
+
+	/* Smallest tail that is ever merged into the base. */
+	private static final int MIN_TAIL = 64;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File baseFile;
+	private final File tailFile;
+
+	/* Mapped base file, or null if there is none yet. */
+	private final ByteBuffer base;
+	private final int messageSlots;
+	private final int wordSlots;
+	private final int postingsOffset;
+	private final int baseCommits;
+
+	/* Postings of the commits in the tail. */
+	private final HashMap<Long, List<String>> tailMessages;
+	private final HashMap<Long, List<String>> tailWords;
+	private int tailCommits;
+
+	private MessageIndex(File baseFile, File tailFile, ByteBuffer base) {
+		this.baseFile = baseFile;
+		this.tailFile = tailFile;
+		this.base = base;
+		this.messageSlots = base == null ? 0 : base.getInt(5);
+		this.wordSlots = base == null ? 0 : base.getInt(9);
+		this.postingsOffset = HEADER_SIZE + (messageSlots + wordSlots) * SLOT_SIZE;
+		this.baseCommits = base == null ? 0 : base.getInt(13);
+		this.tailMessages = new HashMap<>();
+		this.tailWords = new HashMap<>();
+	}
+
+	/**
+	 * Returns whether an index has been written to BASEFILE or TAILFILE.
+	 */
+	static boolean exists(File baseFile, File tailFile) {
+		return baseFile.isFile() || tailFile.isFile();
+	}
+
+	/**
+	 * Opens the index stored in BASEFILE and TAILFILE.
+	 */
+	static MessageIndex load(File baseFile, File tailFile) throws IOException {
+		ByteBuffer base = null;
+		if (baseFile.isFile()) {
+			try (FileChannel channel = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (mapped.getInt(0) != BASE_MAGIC || (mapped.get(4) & 0xff) > VERSION) {
+					throw new IOException("not a gitlet message index: " + baseFile);
+				}
+				base = mapped;
+			}
+		}
+		MessageIndex index = new MessageIndex(baseFile, tailFile, base);
+		if (tailFile.isFile()) {
+			try (Codec.Input in = new Codec.Input(new FileInputStream(tailFile))) {
+				in.expectHeader(TAIL_MAGIC, tailFile);
+				while (in.available() > 0) {
+					String id = in.readId();
+					index.addToTail(id, in.readString());
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Writes a new index of the messages of COMMITS, replacing any existing index.
+	 * Only the headers of the commits are needed.
+	 */
+	static MessageIndex build(File baseFile, File tailFile, List<Commit> commits) throws IOException {
+		HashMap<Long, List<String>> messages = new HashMap<>();
+		HashMap<Long, List<String>> words = new HashMap<>();
+		for (Commit commit : commits) {
+			post(messages, hash(commit.getMessage()), commit.getId());
+			for (String word : words(commit.getMessage())) {
+				post(words, hash(word), commit.getId());
+			}
+		}
+		writeBase(baseFile, messages, words);
+		tailFile.delete();
+		return load(baseFile, tailFile);
+	}
+
+	/* QUERIES */
+
+	/**
+	 * Returns the IDs of the commits that may have MESSAGE as their message.
+	 */
+	List<String> findMessage(String message) {
+		long key = hash(message);
+		List<String> result = lookup(0, messageSlots, key);
+		List<String> tail = tailMessages.get(key);
+		if (tail != null) {
+			result.addAll(tail);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the IDs of the commits whose message may contain every one of the
+	 * words of TEXT, in sorted order.
+	 */
+	List<String> findWords(String text) {
+		Set<String> result = null;
+		for (String word : words(text)) {
+			long key = hash(word);
+			Set<String> ids = new TreeSet<>(lookup(messageSlots, wordSlots, key));
+			List<String> tail = tailWords.get(key);
+			if (tail != null) {
+				ids.addAll(tail);
+			}
+			if (result != null) {
+				ids.retainAll(result);
+			}
+			result = ids;
+			if (result.isEmpty()) {
+				break;
+			}
+		}
+		return result == null ? new ArrayList<>() : new ArrayList<>(result);
+	}
+
+	/**
+	 * Returns the distinct lower case words of TEXT. Words are maximal runs of
+	 * letters and digits.
+	 */
+	static Set<String> words(String text) {
+		Set<String> words = new LinkedHashSet<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (!inWord && start >= 0) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/* UPDATES */
+
+	/**
+	 * Adds the message of a newly created commit to the tail of the index.
+	 */
+	void add(Commit commit) throws IOException {
+		boolean created = !tailFile.exists();
+		try (Codec.Output out = new Codec.Output(new FileOutputStream(tailFile, true))) {
+			if (created) {
+				out.writeInt(TAIL_MAGIC);
+				out.writeByte(VERSION);
+			}
+			out.writeId(commit.getId());
+			out.writeString(commit.getMessage());
+		}
+		addToTail(commit.getId(), commit.getMessage());
+	}
+
+	/**
+	 * Returns whether the tail has grown large enough to be merged into the base.
+	 */
+	boolean needsCompaction() {
+		return tailCommits > Math.max(MIN_TAIL, baseCommits / 8);
+	}
+
+	/**
+	 * Merges the tail into a new base file and returns the compacted index.
+	 */
+	MessageIndex compact() throws IOException {
+		HashMap<Long, List<String>> messages = readTable(0, messageSlots);
+		HashMap<Long, List<String>> words = readTable(messageSlots, wordSlots);
+		for (Map.Entry<Long, List<String>> entry : tailMessages.entrySet()) {
+			messages.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+		}
+		for (Map.Entry<Long, List<String>> entry : tailWords.entrySet()) {
+			words.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+		}
+		writeBase(baseFile, messages, words);
+		tailFile.delete();
+		return load(baseFile, tailFile);
+	}
+
+	private void addToTail(String id, String message) {
+		post(tailMessages, hash(message), id);
+		for (String word : words(message)) {
+			post(tailWords, hash(word), id);
+		}
+		tailCommits++;
+	}
+
+	/**
+	 * Returns the postings stored for KEY in the table of COUNT slots starting at
+	 * slot FIRST, found by binary search.
+	 */
+	private List<String> lookup(int first, int count, long key) {
+		List<String> result = new ArrayList<>();
+		int low = first, high = first + count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long slotKey = base.getLong(HEADER_SIZE + mid * SLOT_SIZE);
+			if (slotKey < key) {
+				low = mid + 1;
+			} else if (slotKey > key) {
+				high = mid - 1;
+			} else {
+				readPostings(mid, result);
+				break;
+			}
+		}
+		return result;
+	}
+
+	private void readPostings(int slot, List<String> result) {
+		int slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+		int offset = postingsOffset + base.getInt(slotOffset + 8) * Codec.ID_LENGTH;
+		int count = base.getInt(slotOffset + 12);
+		byte[] id = new byte[Codec.ID_LENGTH];
+		for (int i = 0; i < count; i++) {
+			base.get(offset + i * Codec.ID_LENGTH, id);
+			result.add(Codec.toHex(id));
+		}
+	}
+
+	private HashMap<Long, List<String>> readTable(int first, int count) {
+		HashMap<Long, List<String>> table = new HashMap<>(count * 4 / 3 + 1);
+		for (int slot = first; slot < first + count; slot++) {
+			List<String> ids = new ArrayList<>();
+			readPostings(slot, ids);
+			table.put(base.getLong(HEADER_SIZE + slot * SLOT_SIZE), ids);
+		}
+		return table;
+	}
+
+	private static void post(HashMap<Long, List<String>> table, long key, String id) {
+		table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(id);
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of the UTF-8 bytes of TEXT.
+	 */
+	private static long hash(String text) {
+		long hash = FNV_OFFSET;
+		for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static void writeBase(File file, HashMap<Long, List<String>> messages, HashMap<Long, List<String>> words)
+			throws IOException {
+		Long[] messageKeys = messages.keySet().toArray(new Long[0]);
+		Long[] wordKeys = words.keySet().toArray(new Long[0]);
+		Arrays.sort(messageKeys);
+		Arrays.sort(wordKeys);
+		File temp = new File(file.getPath() + ".tmp");
+		try (Codec.Output out = new Codec.Output(new FileOutputStream(temp))) {
+			out.writeInt(BASE_MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(messageKeys.length);
+			out.writeInt(wordKeys.length);
+			int commits = 0;
+			for (List<String> ids : messages.values()) {
+				commits += ids.size();
+			}
+			out.writeInt(commits);
+			int posting = writeSlots(out, messageKeys, messages, 0);
+			writeSlots(out, wordKeys, words, posting);
+			writePostings(out, messageKeys, messages);
+			writePostings(out, wordKeys, words);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int writeSlots(Codec.Output out, Long[] keys, HashMap<Long, List<String>> table, int posting)
+			throws IOException {
+		for (Long key : keys) {
+			int count = table.get(key).size();
+			out.writeLong(key);
+			out.writeInt(posting);
+			out.writeInt(count);
+			posting += count;
+		}
+		return posting;
+	}
+
+	private static void writePostings(Codec.Output out, Long[] keys, HashMap<Long, List<String>> table)
+			throws IOException {
+		for (Long key : keys) {
+			for (String id : table.get(key)) {
+				out.writeId(id);
+			}
+		}
+	}
+}
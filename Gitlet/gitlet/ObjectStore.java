@@ -0,0 +1,968 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * ObjectStore keeps every commit of a repository as its own immutable file
+ * named by the commit's SHA-1 ID. Commits are only read from disk when they
+ * are first asked for, and are cached for the rest of the command.
+ *
+ * The files of a commit are stored as one tree object per directory (see
+ * Codec.writeTree), named by its ID, in a directory next to the commits. A
+ * tree is written once and shared by every commit holding that directory
+ * unchanged, and once read it is shared in memory too.
+ *
+ * repack() moves these loose commits, and the loose file versions, into packs
+ * (see Pack). Commits and versions are then read from the mapped packs.
+ */
+class ObjectStore {
+	/* Setting holding the longest chain of deltas written by repack. */
+	static final String DEPTH_KEY = "repack.depth";
+	static final int DEFAULT_DEPTH = 10;
+
+	/* Largest version that is delta encoded. */
+	private static final long MAX_DELTA_SIZE = 128 << 20;
+
+	/* Total size of the versions kept rebuilt from deltas. */
+	private static final long RESOLVED_CACHE_SIZE = 64 << 20;
+
+	/* Directory holding one file per commit. */
+	private final File directory;
+
+	/* Directory holding one file per tree, next to the commit directory. */
+	private final File treeDirectory;
+
+	/* Trees already read (or written) during this command. */
+	private final HashMap<String, FileMap.Dir> trees;
+
+	/* Commits already read (or written) during this command. */
+	private final HashMap<String, Commit> cache;
+
+	/* Commits of which only the header has been read. */
+	private final HashMap<String, Commit> headers;
+
+	/* Generation numbers computed for commits that were stored without one. */
+	private final HashMap<String, Integer> generations;
+
+	/* Files holding the commit graph, next to the commit directory. */
+	private final File graphFile;
+	private final File graphTailFile;
+
+	/* Commit graph, opened the first time ancestry is needed. */
+	private CommitGraph graph;
+
+	/* Files holding the message index, next to the commit directory. */
+	private final File messageIndexFile;
+	private final File messageIndexTailFile;
+
+	/* Message index, opened the first time find needs it. */
+	private MessageIndex messageIndex;
+
+	/* Directory holding the packs, next to the commit directory. */
+	private final File packDirectory;
+
+	/* Packs, opened the first time an object is not found loose. */
+	private List<Pack> packs;
+
+	/* Versions rebuilt from deltas, least recently used first. */
+	private final LinkedHashMap<String, ByteBuffer> resolved;
+	private long resolvedSize;
+
+	ObjectStore(String directory) {
+		this.directory = new File(directory);
+		this.treeDirectory = new File(this.directory.getParentFile(), ".trees");
+		this.trees = new HashMap<>();
+		this.cache = new HashMap<>();
+		this.headers = new HashMap<>();
+		this.generations = new HashMap<>();
+		this.graphFile = new File(this.directory.getParentFile(), "commit-graph");
+		this.graphTailFile = new File(this.directory.getParentFile(), "commit-graph-tail");
+		this.messageIndexFile = new File(this.directory.getParentFile(), "message-index");
+		this.messageIndexTailFile = new File(this.directory.getParentFile(), "message-index-tail");
+		this.packDirectory = new File(this.directory.getParentFile(), "packs");
+		this.resolved = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the commit with the given full ID, reading it from disk if it has not
+	 * been loaded yet.
+	 *
+	 * @param id the full SHA-1 ID of the commit.
+	 * @return the commit, or null if no such commit exists.
+	 */
+	Commit get(String id) {
+		if (id == null || id.isEmpty()) {
+			return null;
+		}
+		Commit commit = cache.get(id);
+		if (commit == null) {
+			commit = read(id, true);
+			if (commit != null) {
+				cache.put(id, commit);
+			}
+		}
+		return commit;
+	}
+
+	/**
+	 * Returns the commit with the given full ID without decoding its file map.
+	 * This is all that log, global-log and find need.
+	 *
+	 * @param id the full SHA-1 ID of the commit.
+	 * @return the commit header, or null if no such commit exists.
+	 */
+	Commit getHeader(String id) {
+		if (id == null || id.isEmpty()) {
+			return null;
+		}
+		Commit commit = cache.get(id);
+		if (commit == null) {
+			commit = headers.get(id);
+		}
+		if (commit == null) {
+			commit = read(id, false);
+			if (commit != null) {
+				headers.put(id, commit);
+			}
+		}
+		return commit;
+	}
+
+	/**
+	 * Reads the commit with the given full ID from disk, without caching it.
+	 *
+	 * @param id           the full SHA-1 ID of the commit.
+	 * @param withContents whether to decode the file map too.
+	 * @return the commit, or null if no such commit exists.
+	 */
+	private Commit read(String id, boolean withContents) {
+		try {
+			File file = new File(directory, id);
+			if (file.isFile()) {
+				return withContents ? Codec.readCommit(file, this::loadedContents, this::tree)
+						: Codec.readCommitHeader(file);
+			}
+			ByteBuffer data = findPacked(id);
+			if (data == null) {
+				return null;
+			} else if (withContents) {
+				return Codec.readCommit(Pack.stream(data), packDirectory, this::loadedContents, this::tree);
+			}
+			return Codec.readCommitHeader(Pack.stream(data), packDirectory);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the file map of the commit ID if it is in memory, or null. Commits
+	 * read after their parent share its map's unchanged entries.
+	 */
+	private FileMap loadedContents(String id) {
+		Commit commit = cache.get(id);
+		return commit == null ? null : commit.getContents();
+	}
+
+	/**
+	 * Returns the directory stored as the tree with ID ID, reading it and its
+	 * subtrees unless they are already in memory.
+	 */
+	private FileMap.Dir tree(String id) throws IOException {
+		FileMap.Dir dir = trees.get(id);
+		if (dir != null) {
+			return dir;
+		}
+		File file = new File(treeDirectory, id);
+		if (file.isFile()) {
+			dir = Codec.readTree(new FileInputStream(file), file, id, this::tree);
+		} else {
+			ByteBuffer data = findPacked(id);
+			if (data == null) {
+				throw new IOException("missing tree " + id);
+			}
+			dir = Codec.readTree(Pack.stream(data), packDirectory, id, this::tree);
+		}
+		trees.put(id, dir);
+		return dir;
+	}
+
+	/**
+	 * Stores the tree of DIR and of every directory below it that is not stored
+	 * yet. A stored tree holds only stored subtrees, so the walk stops at the
+	 * first stored tree on each path. Trees are written like commits (see
+	 * writeObject), so a stored tree is always whole.
+	 */
+	private void putTree(FileMap.Dir dir) throws IOException {
+		String id = dir.id();
+		if (trees.containsKey(id)) {
+			return;
+		}
+		File file = new File(treeDirectory, id);
+		if (!file.isFile() && findPacked(id) == null) {
+			for (Map.Entry<String, Object> entry : dir.entries()) {
+				if (entry.getValue() instanceof FileMap.Dir) {
+					putTree((FileMap.Dir) entry.getValue());
+				}
+			}
+			treeDirectory.mkdir();
+			writeObject(file, out -> Codec.writeTree(out, dir));
+		}
+		trees.put(id, dir);
+	}
+
+	/**
+	 * Returns the generation number of a commit: 1 for the initial commit, and one
+	 * more than the largest generation of its parents otherwise.
+	 *
+	 * @param id the full SHA-1 ID of the commit.
+	 * @return the generation number of the commit.
+	 */
+	int generation(String id) {
+		CommitGraph commitGraph = graph();
+		int pos = commitGraph.position(id);
+		return pos < 0 ? computeGeneration(id) : commitGraph.generation(pos);
+	}
+
+	/**
+	 * Returns the commit graph of this store, building it from the stored commits
+	 * if the repository does not have one yet (or it cannot be read).
+	 */
+	CommitGraph graph() {
+		if (graph != null) {
+			return graph;
+		}
+		try {
+			if (CommitGraph.exists(graphFile, graphTailFile)) {
+				graph = CommitGraph.load(graphFile, graphTailFile);
+				return graph;
+			}
+		} catch (IOException e) {
+			// Fall through and rebuild the graph from the commits.
+		}
+		List<Commit> commits = new ArrayList<>();
+		for (String id : ids()) {
+			commits.add(getHeader(id));
+		}
+		HashMap<String, Integer> all = new HashMap<>();
+		for (Commit commit : commits) {
+			all.put(commit.getId(), computeGeneration(commit.getId()));
+		}
+		try {
+			graph = CommitGraph.build(graphFile, graphTailFile, commits, all);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		return graph;
+	}
+
+	/**
+	 * Returns the message index of this store, building it from the stored
+	 * commits if the repository does not have one yet (or it cannot be read).
+	 */
+	MessageIndex messageIndex() {
+		if (messageIndex != null) {
+			return messageIndex;
+		}
+		try {
+			if (MessageIndex.exists(messageIndexFile, messageIndexTailFile)) {
+				messageIndex = MessageIndex.load(messageIndexFile, messageIndexTailFile);
+				return messageIndex;
+			}
+		} catch (IOException e) {
+			// Fall through and rebuild the index from the commits.
+		}
+		List<Commit> commits = new ArrayList<>();
+		for (String id : ids()) {
+			commits.add(getHeader(id));
+		}
+		try {
+			messageIndex = MessageIndex.build(messageIndexFile, messageIndexTailFile, commits);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		return messageIndex;
+	}
+
+	/**
+	 * Computes the generation number of a commit from the commit objects. Commits
+	 * written by older versions have no stored generation; theirs is computed from
+	 * their ancestors once and remembered.
+	 */
+	private int computeGeneration(String id) {
+		Commit commit = getHeader(id);
+		if (commit.getGeneration() > 0) {
+			return commit.getGeneration();
+		}
+		Deque<String> stack = new ArrayDeque<>();
+		stack.push(id);
+		while (!stack.isEmpty()) {
+			String top = stack.peek();
+			if (generations.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			Commit c = getHeader(top);
+			if (c.getGeneration() > 0) {
+				generations.put(top, c.getGeneration());
+				stack.pop();
+				continue;
+			}
+			int max = 0;
+			boolean ready = true;
+			for (String parent : c.getParents()) {
+				Integer g = generations.get(parent);
+				if (g == null && getHeader(parent).getGeneration() > 0) {
+					g = getHeader(parent).getGeneration();
+				}
+				if (g == null) {
+					ready = false;
+					stack.push(parent);
+				} else {
+					max = Math.max(max, g);
+				}
+			}
+			if (ready) {
+				generations.put(top, max + 1);
+				stack.pop();
+			}
+		}
+		return generations.get(id);
+	}
+
+	boolean contains(String id) {
+		return cache.containsKey(id) || new File(directory, id).isFile() || findPacked(id) != null;
+	}
+
+	/**
+	 * Returns the bytes of the packed object with full ID ID, or null if no pack
+	 * holds it. May be called from several threads.
+	 */
+	ByteBuffer findPacked(String id) {
+		for (Pack pack : packs()) {
+			int pos = pack.position(id);
+			if (pos >= 0) {
+				return pack.type(pos) == Pack.DELTA ? resolveDelta(id, pack.data(pos)) : pack.data(pos);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the version ID, stored as the packed delta DELTA, rebuilt from its
+	 * base and encoded with the STORED codec. Rebuilt versions are kept in a
+	 * cache of limited size, so walking back through the versions of a file
+	 * rebuilds each base only once.
+	 */
+	private ByteBuffer resolveDelta(String id, ByteBuffer delta) {
+		ByteBuffer cached = getResolved(id);
+		if (cached != null) {
+			return cached.duplicate();
+		}
+		ByteBuffer base = findPacked(Delta.baseId(delta));
+		if (base == null) {
+			throw new IllegalArgumentException("missing delta base of " + id);
+		}
+		try {
+			byte[] header = Blob.header(Blob.STORED, Delta.resultSize(delta));
+			ByteBuffer result = ByteBuffer.wrap(Delta.apply(Blob.read(base), delta, header)).asReadOnlyBuffer();
+			putResolved(id, result);
+			return result.duplicate();
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	private synchronized ByteBuffer getResolved(String id) {
+		return resolved.get(id);
+	}
+
+	private synchronized void putResolved(String id, ByteBuffer version) {
+		if (version.remaining() > RESOLVED_CACHE_SIZE / 4) {
+			return;
+		}
+		ByteBuffer old = resolved.put(id, version);
+		resolvedSize += version.remaining() - (old == null ? 0 : old.remaining());
+		Iterator<ByteBuffer> eldest = resolved.values().iterator();
+		while (resolvedSize > RESOLVED_CACHE_SIZE) {
+			resolvedSize -= eldest.next().remaining();
+			eldest.remove();
+		}
+	}
+
+	private synchronized void clearResolved() {
+		resolved.clear();
+		resolvedSize = 0;
+	}
+
+	private synchronized List<Pack> packs() {
+		if (packs == null) {
+			try {
+				packs = Pack.openAll(packDirectory);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e.getMessage());
+			}
+		}
+		return packs;
+	}
+
+	/**
+	 * Moves every loose commit and tree, every loose version in VERSIONS and
+	 * every object of the existing packs into new packs, and deletes what was
+	 * moved. Packs are
+	 * split at Pack.MAX_PACK_SIZE, and loose objects larger than half of that
+	 * stay loose.
+	 *
+	 * The versions of each file are written newest first. The newest is stored
+	 * whole, and each older one as a delta against the one after it, unless
+	 * that saves less than half its size or would make a chain of more than
+	 * MAXDEPTH deltas. Checking out recent versions so needs no delta at all.
+	 *
+	 * @param versions the directory of loose file versions.
+	 * @param maxDepth the longest chain of deltas to write.
+	 * @param level    the Deflater level of versions that are stored whole again.
+	 * @return the number of objects and the number of packs now stored.
+	 */
+	int[] repack(File versions, int maxDepth, int level) throws IOException {
+		return repack(versions, maxDepth, level, id -> false);
+	}
+
+	/**
+	 * Repacks like repack(VERSIONS, MAXDEPTH, LEVEL), except that the packed
+	 * objects for which DROP holds are left out of the new packs, and so are
+	 * deleted.
+	 */
+	private int[] repack(File versions, int maxDepth, int level, Predicate<String> drop) throws IOException {
+		List<Pack> oldPacks = packs();
+		TreeMap<String, File> looseVersions = new TreeMap<>();
+		File[] versionFiles = versions.listFiles();
+		for (File file : versionFiles == null ? new File[0] : versionFiles) {
+			String id = file.getName();
+			if (id.length() == 2 * Codec.ID_LENGTH && file.length() <= Pack.MAX_PACK_SIZE / 2) {
+				looseVersions.put(id, file);
+			}
+		}
+		Set<String> allVersions = new TreeSet<>(looseVersions.keySet());
+		for (Pack pack : oldPacks) {
+			for (String id : pack.ids(Pack.BLOB)) {
+				if (!drop.test(id) || looseVersions.containsKey(id)) {
+					allVersions.add(id);
+				}
+			}
+			for (String id : pack.ids(Pack.DELTA)) {
+				if (!drop.test(id) || looseVersions.containsKey(id)) {
+					allVersions.add(id);
+				}
+			}
+		}
+		List<String> order = new ArrayList<>();
+		for (List<String> chain : versionChains(allVersions, drop).values()) {
+			order.addAll(chain);
+			order.add(null);
+		}
+
+		PackBuilder builder = new PackBuilder(looseVersions, level);
+		try {
+			builder.addAll(directory, Pack.COMMIT, oldPacks, drop);
+			builder.addAll(treeDirectory, Pack.TREE, oldPacks, drop);
+			String previousId = null;
+			byte[] previous = null;
+			int depth = 0;
+			for (String id : order) {
+				if (id == null) {
+					previousId = null;
+					previous = null;
+					continue;
+				} else if (!builder.seen.add(id)) {
+					continue;
+				}
+				byte[] raw = builder.raw(id);
+				if (raw == null || previous == null || depth >= maxDepth) {
+					builder.addWhole(id, raw);
+					depth = 0;
+				} else {
+					byte[] delta = Delta.create(previousId, previous, raw);
+					if (delta.length * 2 < builder.storedLength(id, raw)) {
+						builder.add(id, Pack.DELTA, delta.length, new ByteArrayInputStream(delta));
+						builder.packLoose(id);
+						depth++;
+					} else {
+						builder.addWhole(id, raw);
+						depth = 0;
+					}
+				}
+				previousId = id;
+				previous = raw;
+			}
+			for (String id : allVersions) {
+				if (builder.seen.add(id)) {
+					builder.addWhole(id, null);
+				}
+			}
+			builder.finish();
+		} finally {
+			builder.writer.close();
+		}
+		for (Pack pack : oldPacks) {
+			if (!builder.indexes.contains(pack.indexFile())) {
+				pack.delete();
+			}
+		}
+		for (File file : builder.packed) {
+			file.delete();
+		}
+		packs = null;
+		clearResolved();
+		return new int[] { builder.seen.size(), builder.indexes.size() };
+	}
+
+	/**
+	 * Returns, for each file name, the IDs among VERSIONS of the versions of
+	 * that file in the stored commits for which DROP does not hold, newest
+	 * first. Commits are read one at a time and not kept.
+	 */
+	private TreeMap<String, List<String>> versionChains(Set<String> versions, Predicate<String> drop) {
+		CommitGraph commitGraph = graph();
+		List<Integer> positions = new ArrayList<>();
+		for (int pos = 0; pos < commitGraph.size(); pos++) {
+			positions.add(pos);
+		}
+		positions.sort((a, b) -> {
+			int cmp = Integer.compare(commitGraph.generation(b), commitGraph.generation(a));
+			return cmp != 0 ? cmp : Long.compare(commitGraph.timestamp(b), commitGraph.timestamp(a));
+		});
+		TreeMap<String, List<String>> chains = new TreeMap<>();
+		Set<String> chained = new HashSet<>();
+		for (int pos : positions) {
+			if (drop.test(commitGraph.id(pos))) {
+				continue;
+			}
+			Commit commit = read(commitGraph.id(pos), true);
+			for (Map.Entry<String, String> entry : commit.getContents().entrySet()) {
+				if (versions.contains(entry.getValue()) && chained.add(entry.getValue())) {
+					chains.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry.getValue());
+				}
+			}
+		}
+		return chains;
+	}
+
+	/**
+	 * PackBuilder writes the objects of a repack, starting a new pack whenever
+	 * the current one is full.
+	 */
+	private class PackBuilder {
+		/* Loose versions to be packed, by ID. */
+		final TreeMap<String, File> looseVersions;
+		/* Deflater level of versions stored whole again. */
+		final int level;
+		/* IDs of the objects written so far. */
+		final Set<String> seen;
+		/* Loose files that were packed. */
+		final List<File> packed;
+		/* Index files of the finished packs. */
+		final List<File> indexes;
+		Pack.Writer writer;
+
+		PackBuilder(TreeMap<String, File> looseVersions, int level) throws IOException {
+			this.looseVersions = looseVersions;
+			this.level = level;
+			this.seen = new HashSet<>();
+			this.packed = new ArrayList<>();
+			this.indexes = new ArrayList<>();
+			this.writer = new Pack.Writer(packDirectory);
+		}
+
+		/**
+		 * Writes every loose object of type TYPE in DIR, and every object of
+		 * that type in OLDPACKS for which DROP does not hold.
+		 */
+		void addAll(File dir, byte type, List<Pack> oldPacks, Predicate<String> drop) throws IOException {
+			String[] loose = dir.list();
+			for (String id : loose == null ? new String[0] : loose) {
+				File file = new File(dir, id);
+				if (!id.endsWith(".tmp") && file.length() <= Pack.MAX_PACK_SIZE / 2 && seen.add(id)) {
+					add(id, type, file.length(), new FileInputStream(file));
+					packed.add(file);
+				}
+			}
+			for (Pack pack : oldPacks) {
+				for (String id : pack.ids(type)) {
+					if (!drop.test(id) && seen.add(id)) {
+						ByteBuffer data = pack.data(pack.position(id));
+						add(id, type, data.remaining(), Pack.stream(data));
+					}
+				}
+			}
+		}
+
+		void add(String id, byte type, long length, InputStream in) throws IOException {
+			if (!writer.fits(length)) {
+				finish();
+				writer = new Pack.Writer(packDirectory);
+			}
+			try (InputStream source = in) {
+				writer.add(id, type, source, length);
+			}
+		}
+
+		/**
+		 * Marks the loose file of the version ID, if there is one, to be deleted
+		 * once the new packs are written.
+		 */
+		void packLoose(String id) {
+			File file = looseVersions.get(id);
+			if (file != null) {
+				packed.add(file);
+			}
+		}
+
+		/**
+		 * Returns the contents of the version ID, or null if it is too large to
+		 * be delta encoded.
+		 */
+		byte[] raw(String id) throws IOException {
+			File file = looseVersions.get(id);
+			if (file != null) {
+				return file.length() > MAX_DELTA_SIZE ? null : Blob.read(file);
+			}
+			ByteBuffer data = findPacked(id);
+			return data.remaining() > MAX_DELTA_SIZE ? null : Blob.read(data);
+		}
+
+		/**
+		 * Returns the size of the version ID, whose contents are RAW, when stored
+		 * whole.
+		 */
+		long storedLength(String id, byte[] raw) throws IOException {
+			File file = looseVersions.get(id);
+			if (file != null) {
+				return file.length();
+			}
+			Pack pack = packOf(id);
+			int pos = pack.position(id);
+			return pack.type(pos) == Pack.BLOB ? pack.data(pos).remaining() : Blob.encode(raw, level).length;
+		}
+
+		/**
+		 * Writes the version ID, whose contents are RAW (or null if not read),
+		 * whole.
+		 */
+		void addWhole(String id, byte[] raw) throws IOException {
+			File file = looseVersions.get(id);
+			if (file != null) {
+				add(id, Pack.BLOB, file.length(), new FileInputStream(file));
+				packed.add(file);
+				return;
+			}
+			Pack pack = packOf(id);
+			int pos = pack.position(id);
+			if (pack.type(pos) == Pack.BLOB) {
+				ByteBuffer data = pack.data(pos);
+				add(id, Pack.BLOB, data.remaining(), Pack.stream(data));
+				return;
+			}
+			byte[] stored = Blob.encode(raw != null ? raw : Blob.read(findPacked(id)), level);
+			add(id, Pack.BLOB, stored.length, new ByteArrayInputStream(stored));
+		}
+
+		void finish() throws IOException {
+			File index = writer.finish();
+			if (index != null) {
+				indexes.add(index);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the commits that cannot be reached from ROOTS, and the trees and
+	 * versions that no kept commit holds and that are not in STAGED. Objects
+	 * written at or after CUTOFF (in epoch milliseconds) are kept, so that a
+	 * command running at the same time never loses an object it just wrote; for
+	 * packed objects, the time of their pack counts. Commits kept for their age
+	 * are walked like ROOTS, so their trees and versions are kept with them.
+	 * Packs holding objects to delete are repacked as by repack(VERSIONS,
+	 * MAXDEPTH, LEVEL).
+	 *
+	 * Reachable commits are marked on the commit graph, and only their file maps
+	 * are read, one commit at a time. Their trees are marked from the top down,
+	 * stopping at trees already marked, so a directory that many commits share
+	 * is walked once.
+	 *
+	 * @return the numbers of commits, trees and versions deleted, and the number
+	 *         of bytes reclaimed.
+	 */
+	long[] gc(Collection<String> roots, Collection<String> staged, File versions, long cutoff, int maxDepth,
+			int level) throws IOException {
+		Set<String> recent = new HashSet<>();
+		for (Pack pack : packs()) {
+			if (pack.indexFile().lastModified() >= cutoff) {
+				for (int pos = 0; pos < pack.size(); pos++) {
+					recent.add(pack.id(pos));
+				}
+			}
+		}
+		List<String> starts = new ArrayList<>(roots);
+		starts.addAll(recent);
+		String[] looseCommits = directory.list();
+		for (String id : looseCommits == null ? new String[0] : looseCommits) {
+			if (!id.endsWith(".tmp") && new File(directory, id).lastModified() >= cutoff) {
+				starts.add(id);
+			}
+		}
+
+		CommitGraph commitGraph = graph();
+		BitSet reachable = new BitSet(commitGraph.size());
+		Deque<Integer> stack = new ArrayDeque<>();
+		for (String start : starts) {
+			int pos = commitGraph.position(start);
+			if (pos >= 0) {
+				stack.push(pos);
+			}
+		}
+		while (!stack.isEmpty()) {
+			int pos = stack.pop();
+			if (!reachable.get(pos)) {
+				reachable.set(pos);
+				for (int parent : commitGraph.parents(pos)) {
+					stack.push(parent);
+				}
+			}
+		}
+		Set<String> live = new HashSet<>(staged);
+		for (int pos = reachable.nextSetBit(0); pos >= 0; pos = reachable.nextSetBit(pos + 1)) {
+			String id = commitGraph.id(pos);
+			live.add(id);
+			markTree(read(id, true).getContents().root(), live);
+		}
+		long before = storageSize(versions);
+
+		Set<String> commits = new HashSet<>();
+		Set<String> removedTrees = new HashSet<>();
+		Set<String> blobs = new HashSet<>();
+		for (String id : looseCommits == null ? new String[0] : looseCommits) {
+			File file = new File(directory, id);
+			if (file.lastModified() >= cutoff) {
+				continue;
+			} else if (id.endsWith(".tmp")) {
+				file.delete();
+			} else if (!live.contains(id) && file.delete()) {
+				commits.add(id);
+			}
+		}
+		if (!commits.isEmpty()) {
+			dropIndexes();
+		}
+		String[] looseTrees = treeDirectory.list();
+		for (String id : looseTrees == null ? new String[0] : looseTrees) {
+			File file = new File(treeDirectory, id);
+			if (file.lastModified() >= cutoff) {
+				continue;
+			} else if (id.endsWith(".tmp")) {
+				file.delete();
+			} else if (!live.contains(id) && file.delete()) {
+				removedTrees.add(id);
+			}
+		}
+		File[] looseVersions = versions.listFiles();
+		for (File file : looseVersions == null ? new File[0] : looseVersions) {
+			String id = file.getName();
+			if (file.lastModified() >= cutoff) {
+				continue;
+			} else if (id.endsWith(".tmp")) {
+				file.delete();
+			} else if (!live.contains(id) && file.delete()) {
+				blobs.add(id);
+			}
+		}
+
+		File[] packFiles = packDirectory.listFiles();
+		for (File file : packFiles == null ? new File[0] : packFiles) {
+			if (file.getName().endsWith(".tmp") && file.lastModified() < cutoff) {
+				file.delete();
+			}
+		}
+
+		Set<String> dropped = new HashSet<>();
+		for (Pack pack : packs()) {
+			for (int pos = 0; pos < pack.size(); pos++) {
+				String id = pack.id(pos);
+				if (!live.contains(id) && !recent.contains(id)) {
+					dropped.add(id);
+					byte type = pack.type(pos);
+					(type == Pack.COMMIT ? commits : type == Pack.TREE ? removedTrees : blobs).add(id);
+				}
+			}
+		}
+		if (!dropped.isEmpty()) {
+			repack(versions, maxDepth, level, dropped::contains);
+			dropIndexes();
+		}
+		if (!commits.isEmpty()) {
+			graph();
+		}
+		trees.clear();
+		return new long[] { commits.size(), removedTrees.size(), blobs.size(), before - storageSize(versions) };
+	}
+
+	/**
+	 * Adds to LIVE the ID of the tree of DIR and the IDs of every tree and
+	 * version below it, skipping the trees already in LIVE.
+	 */
+	private static void markTree(FileMap.Dir dir, Set<String> live) {
+		if (!live.add(dir.id())) {
+			return;
+		}
+		for (Map.Entry<String, Object> entry : dir.entries()) {
+			if (entry.getValue() instanceof FileMap.Dir) {
+				markTree((FileMap.Dir) entry.getValue(), live);
+			} else {
+				live.add((String) entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Forgets and deletes the commit graph and the message index, which may list
+	 * deleted commits, so that they are rebuilt from the stored commits.
+	 */
+	private void dropIndexes() {
+		graph = null;
+		messageIndex = null;
+		cache.clear();
+		headers.clear();
+		graphFile.delete();
+		graphTailFile.delete();
+		messageIndexFile.delete();
+		messageIndexTailFile.delete();
+	}
+
+	/**
+	 * Returns the number of bytes taken by the loose commits and trees, the
+	 * loose versions in VERSIONS and the packs.
+	 */
+	private long storageSize(File versions) {
+		long size = 0;
+		for (File dir : new File[] { directory, treeDirectory, versions, packDirectory }) {
+			File[] files = dir.listFiles();
+			for (File file : files == null ? new File[0] : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	private Pack packOf(String id) {
+		for (Pack pack : packs()) {
+			if (pack.position(id) >= 0) {
+				return pack;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a new commit to the store. Commits are immutable, so a commit that is
+	 * already on disk is never rewritten.
+	 *
+	 * @param commit the commit to store.
+	 */
+	void put(Commit commit) {
+		cache.put(commit.getId(), commit);
+		File file = new File(directory, commit.getId());
+		if (file.exists() || findPacked(commit.getId()) != null) {
+			return;
+		}
+		try {
+			putTree(commit.getContents().root());
+			writeObject(file, out -> Codec.writeCommit(out, commit));
+			if (graph != null || CommitGraph.exists(graphFile, graphTailFile)) {
+				int generation = commit.getGeneration() > 0 ? commit.getGeneration()
+						: computeGeneration(commit.getId());
+				graph().add(commit, generation);
+				if (graph.needsCompaction()) {
+					graph = graph.compact();
+				}
+			}
+			if (messageIndex != null || MessageIndex.exists(messageIndexFile, messageIndexTailFile)) {
+				messageIndex().add(commit);
+				if (messageIndex.needsCompaction()) {
+					messageIndex = messageIndex.compact();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes a new object to FILE through WRITER. The object is written under a
+	 * temporary name in the same directory and then renamed, so FILE never holds
+	 * a partial object, which put would otherwise skip as already stored.
+	 */
+	private static void writeObject(File file, ObjectWriter writer) throws IOException {
+		File temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp").toFile();
+		try {
+			writer.write(new FileOutputStream(temp));
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Writes one object to a stream, which it closes.
+	 */
+	private interface ObjectWriter {
+		void write(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Returns the IDs of every commit in the store without loading any of them.
+	 */
+	List<String> ids() {
+		String[] names = directory.list();
+		Set<String> result = new LinkedHashSet<>();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.endsWith(".tmp")) {
+					result.add(name);
+				}
+			}
+		}
+		for (Pack pack : packs()) {
+			result.addAll(pack.ids(Pack.COMMIT));
+		}
+		return new ArrayList<>(result);
+	}
+}
@@ -0,0 +1,379 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pack is one pack of stored objects: a pack file holding the bytes of many
+ * commits, trees and versions back to back, and an index file sorted by object ID.
+ * Both files are memory-mapped, and an object is read as a slice of the
+ * mapped pack, so reading from a pack opens no file.
+ *
+ * The index is laid out like the commit graph: a 256 entry fan-out table on
+ * the first ID byte, the sorted 20-byte IDs, and then for each object its
+ * offset in the pack, its length and its type. The bytes of an object are
+ * exactly those of its loose file, except for versions stored as deltas.
+ * Versions are keyed by their ID alone.
+ * A pack and its index are named after the SHA-1 of the IDs they hold.
+ */
+class Pack {
+	private static final int PACK_MAGIC = 0x474c5031; // "GLP1"
+	private static final int INDEX_MAGIC = 0x474c4b31; // "GLK1"
+	/* Version 2 added deltas, and version 3 trees. */
+	private static final int VERSION = 3;
+
+	/* Type of a commit object. */
+	static final byte COMMIT = 1;
+	/* Type of a file version. */
+	static final byte BLOB = 2;
+	/* Type of a file version stored as a delta against another (see Delta). */
+	static final byte DELTA = 3;
+	/* Type of a tree object (see Codec.writeTree). */
+	static final byte TREE = 4;
+
+	/* Size of the magic number and version at the start of a pack. */
+	private static final int PACK_HEADER_SIZE = 5;
+	/* Size of the magic number, version and object count of an index. */
+	private static final int INDEX_HEADER_SIZE = 9;
+	private static final int FANOUT_SIZE = 256 * 4;
+
+	/* Largest pack, so that every offset fits a mapped buffer. */
+	static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+	static final String PACK_SUFFIX = ".pack";
+	static final String INDEX_SUFFIX = ".idx";
+
+	private final File packFile;
+	private final File indexFile;
+	private final ByteBuffer pack;
+	private final ByteBuffer index;
+	private final int size;
+	private final int idsOffset;
+	private final int offsetsOffset;
+	private final int lengthsOffset;
+	private final int typesOffset;
+
+	private Pack(File packFile, File indexFile, ByteBuffer pack, ByteBuffer index) {
+		this.packFile = packFile;
+		this.indexFile = indexFile;
+		this.pack = pack;
+		this.index = index;
+		this.size = index.getInt(5);
+		this.idsOffset = INDEX_HEADER_SIZE + FANOUT_SIZE;
+		this.offsetsOffset = idsOffset + size * Codec.ID_LENGTH;
+		this.lengthsOffset = offsetsOffset + size * 4;
+		this.typesOffset = lengthsOffset + size * 4;
+	}
+
+	/**
+	 * Opens the pack whose index is INDEXFILE.
+	 */
+	static Pack open(File indexFile) throws IOException {
+		String name = indexFile.getName();
+		File packFile = new File(indexFile.getParentFile(),
+				name.substring(0, name.length() - INDEX_SUFFIX.length()) + PACK_SUFFIX);
+		ByteBuffer index = map(indexFile);
+		if (index.getInt(0) != INDEX_MAGIC || (index.get(4) & 0xff) > VERSION) {
+			throw new IOException("not a gitlet pack index: " + indexFile);
+		}
+		ByteBuffer pack = map(packFile);
+		if (pack.getInt(0) != PACK_MAGIC || (pack.get(4) & 0xff) > VERSION) {
+			throw new IOException("not a gitlet pack: " + packFile);
+		}
+		return new Pack(packFile, indexFile, pack, index);
+	}
+
+	/**
+	 * Opens every pack in DIRECTORY.
+	 */
+	static List<Pack> openAll(File directory) throws IOException {
+		List<Pack> packs = new ArrayList<>();
+		String[] names = directory.list();
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				if (name.endsWith(INDEX_SUFFIX)) {
+					packs.add(open(new File(directory, name)));
+				}
+			}
+		}
+		return packs;
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/* QUERIES */
+
+	/**
+	 * Returns the number of objects in the pack.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the combined size of the pack and its index, in bytes.
+	 */
+	long diskSize() {
+		return packFile.length() + indexFile.length();
+	}
+
+	/**
+	 * Returns the position of the object with full ID ID, or -1 if it is not in
+	 * the pack.
+	 */
+	int position(String id) {
+		byte[] key = Codec.fromHex(id);
+		int first = key[0] & 0xff;
+		int low = first == 0 ? 0 : index.getInt(INDEX_HEADER_SIZE + (first - 1) * 4);
+		int high = index.getInt(INDEX_HEADER_SIZE + first * 4) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = Arrays.compareUnsigned(idBytes(mid), key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the full ID of the object at position POS.
+	 */
+	String id(int pos) {
+		return Codec.toHex(idBytes(pos));
+	}
+
+	private byte[] idBytes(int pos) {
+		byte[] id = new byte[Codec.ID_LENGTH];
+		index.get(idsOffset + pos * Codec.ID_LENGTH, id);
+		return id;
+	}
+
+	/**
+	 * Returns the type, COMMIT, BLOB or DELTA, of the object at position POS.
+	 */
+	byte type(int pos) {
+		return index.get(typesOffset + pos);
+	}
+
+	/**
+	 * Returns the bytes of the object at position POS, as a read-only slice of the
+	 * mapped pack.
+	 */
+	ByteBuffer data(int pos) {
+		int offset = index.getInt(offsetsOffset + pos * 4);
+		int length = index.getInt(lengthsOffset + pos * 4);
+		return pack.slice(offset, length);
+	}
+
+	/**
+	 * Returns the IDs of the objects of type TYPE in the pack.
+	 */
+	List<String> ids(byte type) {
+		List<String> ids = new ArrayList<>();
+		for (int pos = 0; pos < size; pos++) {
+			if (type(pos) == type) {
+				ids.add(id(pos));
+			}
+		}
+		return ids;
+	}
+
+	File indexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Deletes the pack and its index.
+	 */
+	void delete() {
+		indexFile.delete();
+		packFile.delete();
+	}
+
+	/**
+	 * Returns a stream reading the remaining bytes of BUFFER.
+	 */
+	static InputStream stream(ByteBuffer buffer) {
+		ByteBuffer data = buffer.slice();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return data.hasRemaining() ? data.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				} else if (!data.hasRemaining()) {
+					return -1;
+				}
+				len = Math.min(len, data.remaining());
+				data.get(b, off, len);
+				return len;
+			}
+
+			@Override
+			public int available() {
+				return data.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Writer writes a new pack into a directory. Objects are appended to a
+	 * temporary pack file in any order, and finish() writes the index and gives
+	 * both files their final names.
+	 */
+	static class Writer implements AutoCloseable {
+		private final File directory;
+		private final File temp;
+		private final Codec.Output out;
+		private final List<String> ids;
+		private final List<Integer> offsets;
+		private final List<Integer> lengths;
+		private final List<Byte> types;
+		private long position;
+
+		Writer(File directory) throws IOException {
+			this.directory = directory;
+			directory.mkdirs();
+			this.temp = Files.createTempFile(directory.toPath(), "pack", ".tmp").toFile();
+			this.out = new Codec.Output(new FileOutputStream(temp));
+			this.ids = new ArrayList<>();
+			this.offsets = new ArrayList<>();
+			this.lengths = new ArrayList<>();
+			this.types = new ArrayList<>();
+			out.writeInt(PACK_MAGIC);
+			out.writeByte(VERSION);
+			this.position = PACK_HEADER_SIZE;
+		}
+
+		/**
+		 * Returns whether an object of LENGTH bytes still fits in the pack.
+		 */
+		boolean fits(long length) {
+			return position + length <= MAX_PACK_SIZE;
+		}
+
+		/**
+		 * Returns the number of objects written so far.
+		 */
+		int count() {
+			return ids.size();
+		}
+
+		/**
+		 * Appends the object ID of type TYPE whose bytes are read from IN, LENGTH
+		 * bytes in all.
+		 */
+		void add(String id, byte type, InputStream in, long length) throws IOException {
+			if (!fits(length)) {
+				throw new IOException("object " + id + " does not fit in the pack");
+			}
+			long copied = in.transferTo(out);
+			if (copied != length) {
+				throw new IOException("object " + id + " changed while it was packed");
+			}
+			ids.add(id);
+			offsets.add((int) position);
+			lengths.add((int) length);
+			types.add(type);
+			position += length;
+		}
+
+		/**
+		 * Writes the index and moves the pack into place.
+		 *
+		 * @return the index file of the new pack, or null if no object was added.
+		 */
+		File finish() throws IOException {
+			out.close();
+			if (ids.isEmpty()) {
+				temp.delete();
+				return null;
+			}
+			Integer[] order = new Integer[ids.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> ids.get(a).compareTo(ids.get(b)));
+			String name = "pack-" + name(order);
+			File indexTemp = new File(directory, name + INDEX_SUFFIX + ".tmp");
+			try (Codec.Output index = new Codec.Output(new FileOutputStream(indexTemp))) {
+				index.writeInt(INDEX_MAGIC);
+				index.writeByte(VERSION);
+				index.writeInt(order.length);
+				int[] fanout = new int[256];
+				for (String id : ids) {
+					fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+				}
+				int total = 0;
+				for (int count : fanout) {
+					total += count;
+					index.writeInt(total);
+				}
+				for (int i : order) {
+					index.writeId(ids.get(i));
+				}
+				for (int i : order) {
+					index.writeInt(offsets.get(i));
+				}
+				for (int i : order) {
+					index.writeInt(lengths.get(i));
+				}
+				for (int i : order) {
+					index.writeByte(types.get(i));
+				}
+			}
+			File packFile = new File(directory, name + PACK_SUFFIX);
+			File indexFile = new File(directory, name + INDEX_SUFFIX);
+			Files.move(temp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(indexTemp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return indexFile;
+		}
+
+		private String name(Integer[] order) {
+			try {
+				MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+				for (int i : order) {
+					sha1.update(Codec.fromHex(ids.get(i)));
+				}
+				return Codec.toHex(sha1.digest());
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("System does not support SHA-1");
+			}
+		}
+
+		/**
+		 * Discards the pack if it was not finished.
+		 */
+		@Override
+		public void close() throws IOException {
+			out.close();
+			temp.delete();
+		}
+	}
+}
@@ -1,20 +1,33 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.FileInputStream;
-import java.math.BigInteger;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.Date;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Repository represents a Gitlet repository.
@@ -22,7 +35,7 @@ import java.util.Date;
  * @author Travis & Brian
  */
 
-public class Repository implements Serializable {
+public class Repository {
 	/* String for working directory. */
 	static final String WORKING_DIRECTORY = System.getProperty("user.dir");
 
@@ -35,14 +48,49 @@ public class Repository implements Serializable {
 	/* String for commit directory. */
 	private static final String COMMIT_DIRECTORY = GITLET_DIRECTORY + FILE_SEP + ".commits";
 
-	/* String for version directory. */
-	private static final String VERSIONS_DIRECTORY = GITLET_DIRECTORY + FILE_SEP + ".versions";
+	/*
+	 * String for version directory, holding each version once, named by the
+	 * SHA-1 of its contents.
+	 */
+	private static final String VERSIONS_DIRECTORY = GITLET_DIRECTORY + FILE_SEP + ".blobs";
+
+	/*
+	 * Directory that held the versions in older repositories, named by an ID
+	 * that also covered the file name, followed by the file's extension.
+	 */
+	private static final String LEGACY_VERSIONS_DIRECTORY = GITLET_DIRECTORY + FILE_SEP + ".versions";
 
-	/* String for staging area. */
+	/* Directory that held copies of the staged files in older repositories. */
 	private static final String STAGING_AREA = GITLET_DIRECTORY + FILE_SEP + ".stage";
 
-	/* UID for serialization. */
-	static final long serialVersionUID = 12345678901L;
+	/* String for branch directory, holding one file per branch with its head ID. */
+	private static final String REFS_DIRECTORY = GITLET_DIRECTORY + FILE_SEP + "refs";
+
+	/* File holding the name of the current branch and the head commit ID. */
+	private static final String HEAD_FILE = GITLET_DIRECTORY + FILE_SEP + "HEAD";
+
+	/* File holding the names of files staged for removal. */
+	private static final String DELETIONS_FILE = GITLET_DIRECTORY + FILE_SEP + "deletions";
+
+	/* File holding the staging area: the version ID staged for each file name. */
+	private static final String STAGED_FILE = GITLET_DIRECTORY + FILE_SEP + "staged";
+
+	/* File holding the stat cache of the working directory. */
+	private static final String INDEX_FILE = GITLET_DIRECTORY + FILE_SEP + "index";
+
+	/* Number of files add and checkout read or write at once. */
+	private static final int IO_PARALLELISM = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
+	/*
+	 * Number of files the diff command holds in memory at once. Each holds both
+	 * of its versions in full, plus its rendered diff.
+	 */
+	private static final int DIFF_WINDOW = IO_PARALLELISM * 4;
+
+	/* Setting holding the number of days gc keeps unreachable objects. */
+	private static final String GRACE_DAYS_KEY = "gc.grace-days";
+
+	private static final long DEFAULT_GRACE_DAYS = 14;
 
 	/**
 	 * HashMap of all branches in repository with string name as key ("master") and
@@ -51,10 +99,10 @@ public class Repository implements Serializable {
 	private HashMap<String, String> branches;
 
 	/**
-	 * Hash map of all commits in repository with the SHA-1 ID of commit at key and
-	 * pointer to commit object as values.
+	 * Store of all commits in repository. Commits are read from disk on demand, so
+	 * a command only pays for the commits it actually touches.
 	 */
-	private HashMap<String, Commit> tree;
+	private ObjectStore tree;
 
 	private String head;
 
@@ -64,6 +112,26 @@ public class Repository implements Serializable {
 	// List of string names ("hello.txt") for files to delete.
 	private List<String> deletions;
 
+	// The staging area, mapping each staged file name to the version ID written
+	// to the versions directory by add().
+	private HashMap<String, String> stagedHashes;
+
+	// Stat cache of the working directory, read the first time a working file
+	// needs to be hashed.
+	private StatCache statCache;
+
+	// Strategy for copying files in and out of the working directory, read from
+	// the repository configuration when first needed.
+	private Materializer materializer;
+
+	// State as last read from or written to disk, used by save() to skip
+	// rewriting files that did not change.
+	private HashMap<String, String> savedBranches;
+	private String savedHead;
+	private String savedCurrentBranch;
+	private List<String> savedDeletions;
+	private HashMap<String, String> savedStagedHashes;
+
 	// Helper functions for head of current branch.
 
 	private String getHeadID(String branchName) {
@@ -74,13 +142,19 @@ public class Repository implements Serializable {
 		return tree.get(head);
 	}
 
-	public Repository(HashMap<String, String> branches, HashMap<String, Commit> tree, String head, String currentBranch,
-			List<String> deletions) {
+	public Repository(HashMap<String, String> branches, ObjectStore tree, String head, String currentBranch,
+			List<String> deletions, HashMap<String, String> stagedHashes) {
 		this.branches = branches;
 		this.tree = tree;
 		this.head = head;
 		this.currentBranch = currentBranch;
 		this.deletions = deletions;
+		this.stagedHashes = stagedHashes;
+		this.savedBranches = new HashMap<>(branches);
+		this.savedHead = head;
+		this.savedCurrentBranch = currentBranch;
+		this.savedDeletions = new ArrayList<>(deletions);
+		this.savedStagedHashes = new HashMap<>(stagedHashes);
 	}
 
 	/**
@@ -88,13 +162,17 @@ public class Repository implements Serializable {
 	 */
 	private Repository() {
 		this.branches = new HashMap<>();
-		this.tree = new HashMap<>();
+		this.tree = new ObjectStore(COMMIT_DIRECTORY);
 		this.deletions = new ArrayList<>();
+		this.stagedHashes = new HashMap<>();
 		this.currentBranch = "master";
-		Commit initialCommit = new Commit("", "initial commit", new Date(), new HashMap<>());
-		tree.put(initialCommit.getId(), initialCommit);
+		Commit initialCommit = new Commit(new ArrayList<>(), 1, "initial commit", new Date(), FileMap.EMPTY);
+		tree.put(initialCommit);
 		this.head = initialCommit.getId();
 		this.branches.put(this.currentBranch, this.head);
+		this.savedBranches = new HashMap<>();
+		this.savedDeletions = new ArrayList<>();
+		this.savedStagedHashes = new HashMap<>();
 	}
 
 	/**
@@ -105,111 +183,571 @@ public class Repository implements Serializable {
 	public static Repository init() {
 		File gitlet = new File(GITLET_DIRECTORY);
 		gitlet.mkdir();
-		File file = new File(STAGING_AREA);
-		file.mkdir();
-		file = new File(COMMIT_DIRECTORY);
+		File file = new File(COMMIT_DIRECTORY);
 		file.mkdir();
 		file = new File(VERSIONS_DIRECTORY);
 		file.mkdir();
+		file = new File(REFS_DIRECTORY);
+		file.mkdir();
 		return new Repository();
 	}
 
-	public void add(String filename) {
-		File file = new File(WORKING_DIRECTORY, filename);
-		if (!file.exists()) {
-			System.out.println("File does not exist.");
-			System.exit(0);
+	/**
+	 * Loads the repository in the current directory. Only the branch heads, HEAD
+	 * and the removal list are read here; commits are read lazily from the object
+	 * store as they are needed. A repository still in the old single repo.bin
+	 * format is migrated first.
+	 *
+	 * @return the repository, or null if the current directory is not an
+	 *         initialized gitlet directory.
+	 */
+	public static Repository load() {
+		File headFile = new File(HEAD_FILE);
+		if (!headFile.isFile()) {
+			File legacy = new File(GITLET_DIRECTORY, LegacyFormat.REPO);
+			return legacy.isFile() ? migrate(legacy) : null;
 		}
-		String hash = computeHash(file);
-		String original = tree.get(head).getContents().get(filename);
+		try {
+			String[] headState = Codec.readHead(headFile);
+			HashMap<String, String> branches = new HashMap<>();
+			File[] refs = new File(REFS_DIRECTORY).listFiles();
+			if (refs != null) {
+				for (File ref : refs) {
+					branches.put(ref.getName(), Codec.readRef(ref));
+				}
+			}
+			List<String> deletions = new ArrayList<>();
+			File deletionsFile = new File(DELETIONS_FILE);
+			if (deletionsFile.isFile()) {
+				deletions.addAll(Codec.readNames(deletionsFile));
+			}
+			File stagedFile = new File(STAGED_FILE);
+			HashMap<String, String> stagedHashes = stagedFile.isFile() ? Codec.readEntries(stagedFile)
+					: new HashMap<>();
+			File legacyVersions = new File(LEGACY_VERSIONS_DIRECTORY);
+			if (legacyVersions.isDirectory()) {
+				migrateVersions(legacyVersions);
+			}
+			File stage = new File(STAGING_AREA);
+			if (stage.isDirectory()) {
+				migrateStage(stage, stagedHashes);
+			}
+			return new Repository(branches, new ObjectStore(COMMIT_DIRECTORY), headState[1], headState[0],
+					deletions, stagedHashes);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 
-		deletions.remove(filename);
-		if (hash.equals(original)) {
-			return;
+	/**
+	 * Converts a repository stored in the old repo.bin format to the current
+	 * format: every commit becomes its own object, commit ids are padded to the
+	 * full 40 hex digits (old versions dropped leading zeros), the versions are
+	 * stored under the IDs of their contents (see rehashVersions) and the
+	 * commits refer to them by those IDs, the staged files are moved as by
+	 * migrateStage, and repo.bin and the old versions are removed.
+	 *
+	 * @param legacy the repo.bin file.
+	 * @return the migrated repository.
+	 */
+	private static Repository migrate(File legacy) {
+		LegacyFormat.LegacyRepository old;
+		try {
+			old = LegacyFormat.read(legacy);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
 		}
+		File legacyVersions = new File(LEGACY_VERSIONS_DIRECTORY);
+		HashMap<String, String> versionIds;
 		try {
-			File dest = new File(STAGING_AREA, filename);
-			Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			versionIds = rehashVersions(legacyVersions);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		}
+		new File(COMMIT_DIRECTORY).mkdir();
+		new File(REFS_DIRECTORY).mkdir();
+		ObjectStore store = new ObjectStore(COMMIT_DIRECTORY);
+		for (LegacyFormat.LegacyCommit c : old.tree.values()) {
+			HashMap<String, String> contents = new HashMap<>();
+			for (Map.Entry<String, String> entry : c.contents.entrySet()) {
+				String id = Codec.padHex(entry.getValue());
+				contents.put(entry.getKey(), versionIds.getOrDefault(id, id));
+			}
+			List<String> parents = new ArrayList<>();
+			if (!c.parent.isEmpty()) {
+				parents.add(Codec.padHex(c.parent));
+			}
+			store.put(new Commit(Codec.padHex(c.id), parents, c.message, c.commitDate.getTime(), 0,
+					FileMap.of(contents)));
 		}
+		HashMap<String, String> stagedHashes = new HashMap<>();
+		try {
+			File stage = new File(STAGING_AREA);
+			if (stage.isDirectory()) {
+				migrateStage(stage, stagedHashes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		HashMap<String, String> branches = new HashMap<>();
+		for (Map.Entry<String, String> entry : old.branches.entrySet()) {
+			branches.put(entry.getKey(), Codec.padHex(entry.getValue()));
+		}
+		Repository repository = new Repository(branches, store, Codec.padHex(old.head), old.currentBranch,
+				new ArrayList<>(old.deletions), stagedHashes);
+		repository.savedBranches = new HashMap<>();
+		repository.savedHead = null;
+		repository.savedDeletions = null;
+		repository.save();
+		legacy.delete();
+		File[] files = legacyVersions.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			file.delete();
+		}
+		legacyVersions.delete();
+		return repository;
 	}
 
-	public void commit(String message) {
-		if (message.isEmpty()) {
-			System.out.println("Please enter a commit message.");
-			System.exit(0);
+	/**
+	 * Stores each version in LEGACY, the versions directory of repo.bin
+	 * repositories, under the ID of its contents alone. The old IDs covered the
+	 * file name too, so they never match the ID of the same contents hashed now.
+	 * LEGACY is left in place, so that an interrupted migration can be run
+	 * again.
+	 *
+	 * @return the new ID of each old ID, padded to the full 40 hex digits.
+	 */
+	private static HashMap<String, String> rehashVersions(File legacy) throws IOException {
+		new File(VERSIONS_DIRECTORY).mkdir();
+		Materializer materializer = Materializer.fromConfig(Config.load());
+		HashMap<String, String> ids = new HashMap<>();
+		File[] files = legacy.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			int dot = name.indexOf('.');
+			String hash = dot < 0 ? name : name.substring(0, dot);
+			if (!name.endsWith(".tmp") && hash.matches("[0-9a-f]{1,40}")) {
+				String id = FileHasher.hash(file);
+				materializer.store(file, versionFile(id));
+				ids.put(Codec.padHex(hash), id);
+			}
 		}
-		File stage = new File(STAGING_AREA);
+		return ids;
+	}
+
+	/**
+	 * Moves the versions in LEGACY, the versions directory of older versions of
+	 * Gitlet, to the current one, renamed to their ID alone, padded to the full
+	 * 40 hex digits, and removes LEGACY. Their IDs are kept, although they
+	 * covered the file name too, so the commits holding them stay valid.
+	 */
+	private static void migrateVersions(File legacy) throws IOException {
+		new File(VERSIONS_DIRECTORY).mkdir();
+		Materializer materializer = Materializer.fromConfig(Config.load());
+		File[] files = legacy.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			int dot = name.indexOf('.');
+			String hash = dot < 0 ? name : name.substring(0, dot);
+			if (name.endsWith(".tmp")) {
+				file.delete();
+			} else if (hash.matches("[0-9a-f]{1,40}")) {
+				materializer.move(file, versionFile(Codec.padHex(hash)));
+			}
+		}
+		legacy.delete();
+	}
+
+	/**
+	 * Moves the file copies left in STAGE by older versions of Gitlet into the
+	 * versions directory, recording their IDs in STAGEDHASHES, and removes STAGE.
+	 * The staged file is written right away so this happens only once.
+	 */
+	private static void migrateStage(File stage, HashMap<String, String> stagedHashes) throws IOException {
 		File[] stagedFiles = stage.listFiles();
+		for (File stagedFile : stagedFiles == null ? new File[0] : stagedFiles) {
+			String hash = stagedHashes.get(stagedFile.getName());
+			if (hash == null) {
+				hash = FileHasher.hash(stagedFile);
+				stagedHashes.put(stagedFile.getName(), hash);
+			}
+			Materializer.fromConfig(Config.load()).move(stagedFile, versionFile(hash));
+		}
+		Codec.writeEntries(new File(STAGED_FILE), stagedHashes);
+		stage.delete();
+	}
 
-		if (stagedFiles.length == 0 && deletions.size() == 0) {
-			System.out.println("No changes added to the commit.");
-			System.exit(0);
+	/**
+	 * Persists the branch heads, HEAD and removal list. Commits are written to the
+	 * object store as they are created, and only the small files whose contents
+	 * changed since the repository was loaded are rewritten here.
+	 */
+	public void save() {
+		try {
+			for (Map.Entry<String, String> entry : branches.entrySet()) {
+				if (!entry.getValue().equals(savedBranches.get(entry.getKey()))) {
+					Codec.writeRef(new File(REFS_DIRECTORY, entry.getKey()), entry.getValue());
+				}
+			}
+			for (String branch : savedBranches.keySet()) {
+				if (!branches.containsKey(branch)) {
+					new File(REFS_DIRECTORY, branch).delete();
+				}
+			}
+			if (!currentBranch.equals(savedCurrentBranch) || !head.equals(savedHead)) {
+				Codec.writeHead(new File(HEAD_FILE), currentBranch, head);
+			}
+			if (!deletions.equals(savedDeletions)) {
+				Codec.writeNames(new File(DELETIONS_FILE), deletions);
+			}
+			if (!stagedHashes.equals(savedStagedHashes)) {
+				Codec.writeEntries(new File(STAGED_FILE), stagedHashes);
+			}
+			if (statCache != null) {
+				statCache.save();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		Commit current = tree.get(head);
-		HashMap<String, String> contents = new HashMap<>(current.getContents());
+		savedBranches = new HashMap<>(branches);
+		savedHead = head;
+		savedCurrentBranch = currentBranch;
+		savedDeletions = new ArrayList<>(deletions);
+		savedStagedHashes = new HashMap<>(stagedHashes);
+	}
 
-		for (String deletion : deletions) {
-			contents.remove(deletion);
+	public void add(String filename) {
+		add(Arrays.asList(filename));
+	}
+
+	/**
+	 * Stages the files named by OPERANDS. An operand is either a file path, a
+	 * directory, which stands for every file below it (so "." adds everything),
+	 * or a glob pattern such as "*.txt" or "src/**.java" matched against the
+	 * paths of the working files. The files are hashed and written to the
+	 * versions directory in parallel, but the staging area is updated in name
+	 * order so the result does not depend on the scheduling. Committing then
+	 * only records the staged IDs.
+	 *
+	 * @param operands the file names, directories and patterns to add.
+	 */
+	public void add(List<String> operands) {
+		List<String> filenames = expandOperands(operands);
+		Map<String, String> original = tree.get(head).getContents();
+		StatCache cache = getStatCache();
+		Materializer materializer = getMaterializer();
+		Set<String> claimed = ConcurrentHashMap.newKeySet();
+		List<StagedFile> staged;
+		try {
+			staged = inParallel(filenames, name -> stageFile(cache, materializer, tree, claimed, name, original));
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
+			return;
+		}
+		for (StagedFile file : staged) {
+			deletions.remove(file.name);
+			if (file.hash != null) {
+				stagedHashes.put(file.name, file.hash);
+			}
 		}
-		for (File stagedFile : stagedFiles) {
-			String hash = computeHash(stagedFile);
-			contents.put(stagedFile.getName(), hash);
+	}
 
-			File dest = new File(VERSIONS_DIRECTORY,
-					hash + stagedFile.getName().substring(stagedFile.getName().lastIndexOf('.')));
-			try {
-				Files.copy(stagedFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
-				stagedFile.delete();
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Applies TASK to every element of ITEMS on a pool of at most IO_PARALLELISM
+	 * threads, and returns the results in the order of ITEMS.
+	 */
+	private static <T, R> List<R> inParallel(List<T> items, Function<T, R> task) {
+		if (items.size() <= 1) {
+			return items.stream().map(task).collect(Collectors.toList());
+		}
+		ForkJoinPool pool = new ForkJoinPool(IO_PARALLELISM);
+		try {
+			return pool.submit(() -> items.parallelStream().map(task).collect(Collectors.toList())).join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A file processed by add. HASH is null if the file matches the head commit
+	 * and so was not staged.
+	 */
+	private static class StagedFile {
+		final String name;
+		final String hash;
+
+		StagedFile(String name, String hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Hashes the working file FILENAME and stores its version unless it is
+	 * unchanged from ORIGINAL, the contents of the head commit. A version is
+	 * written only by the first file to add it to CLAIMED, and only if it is not
+	 * stored yet, so files with the same contents are written once. Called from
+	 * the add worker threads, so it touches no repository state but the stat
+	 * cache and CLAIMED.
+	 */
+	private static StagedFile stageFile(StatCache cache, Materializer materializer, ObjectStore objects,
+			Set<String> claimed, String filename, Map<String, String> original) {
+		File file = new File(WORKING_DIRECTORY, filename);
+		try {
+			String hash = cache.hash(file, filename);
+			if (hash.equals(original.get(filename))) {
+				return new StagedFile(filename, null);
+			}
+			if (claimed.add(hash) && objects.findPacked(hash) == null) {
+				materializer.store(file, versionFile(hash));
+			}
+			return new StagedFile(filename, hash);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Returns the sorted, distinct paths of the working files named by OPERANDS.
+	 * Paths are relative to the working directory, with '/' between directories,
+	 * and never lead into .gitlet.
+	 */
+	private static List<String> expandOperands(List<String> operands) {
+		TreeSet<String> names = new TreeSet<>();
+		List<String> allFiles = null;
+		for (String operand : operands) {
+			File file = new File(WORKING_DIRECTORY, operand);
+			if (file.isFile() || file.isDirectory()) {
+				Path path = Paths.get(WORKING_DIRECTORY).relativize(file.toPath().normalize());
+				String name = path.toString().replace(File.separatorChar, '/');
+				if (path.startsWith("..")) {
+					throw new GitletException("File is outside the working directory.");
+				} else if (path.startsWith(".gitlet")) {
+					throw new GitletException("Cannot add files in .gitlet.");
+				} else if (file.isFile()) {
+					names.add(name);
+				} else {
+					listWorkingFiles(file, name.isEmpty() ? "" : name + "/", names);
+				}
+			} else if (isPattern(operand)) {
+				if (allFiles == null) {
+					allFiles = new ArrayList<>();
+					listWorkingFiles(new File(WORKING_DIRECTORY), "", allFiles);
+				}
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + operand);
+				boolean matched = false;
+				for (String name : allFiles) {
+					if (matcher.matches(Paths.get(name))) {
+						names.add(name);
+						matched = true;
+					}
+				}
+				if (!matched) {
+					throw new GitletException("File does not exist.");
+				}
+			} else {
+				throw new GitletException("File does not exist.");
+			}
+		}
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * Adds to NAMES the paths of the files below DIR, whose own path is PREFIX
+	 * less its trailing '/'. The .gitlet directory and links to directories are
+	 * skipped.
+	 */
+	private static void listWorkingFiles(File dir, String prefix, Collection<String> names) {
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = prefix + file.getName();
+			if (file.isFile()) {
+				names.add(name);
+			} else if (file.isDirectory() && !name.equals(".gitlet") && !Files.isSymbolicLink(file.toPath())) {
+				listWorkingFiles(file, name + "/", names);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the working file FILENAME, and then each directory above it that
+	 * this leaves empty, up to the working directory.
+	 */
+	private static void deleteWorkingFile(String filename) {
+		File root = new File(WORKING_DIRECTORY);
+		File file = new File(WORKING_DIRECTORY, filename);
+		file.delete();
+		for (File dir = file.getParentFile(); dir != null && !dir.equals(root); dir = dir.getParentFile()) {
+			String[] left = dir.list();
+			if (left == null || left.length > 0 || !dir.delete()) {
+				break;
 			}
 		}
+	}
 
-		current = new Commit(current.getId(), message, new Date(), contents);
+	private static boolean isPattern(String operand) {
+		for (char c : "*?[{".toCharArray()) {
+			if (operand.indexOf(c) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void commit(String message) {
+		commit(message, null);
+	}
+
+	/**
+	 * Commits the staging area.
+	 *
+	 * @param message      the commit message.
+	 * @param mergedParent the head of the branch merged in, or null if this is not
+	 *                     a merge commit.
+	 */
+	private void commit(String message, String mergedParent) {
+		if (message.isEmpty()) {
+			throw new GitletException("Please enter a commit message.");
+		}
+		if (stagedHashes.isEmpty() && deletions.isEmpty()) {
+			throw new GitletException("No changes added to the commit.");
+		}
+		Commit current = tree.get(head);
+		FileMap contents = stagedContents();
+
+		List<String> parents = new ArrayList<>();
+		parents.add(current.getId());
+		int generation = tree.generation(current.getId());
+		if (mergedParent != null) {
+			parents.add(mergedParent);
+			generation = Math.max(generation, tree.generation(mergedParent));
+		}
+		current = new Commit(parents, generation + 1, message, new Date(), contents);
 		head = current.getId();
-		tree.put(head, current);
+		tree.put(current);
 		branches.put(currentBranch, head);
 		deletions.clear();
+		stagedHashes.clear();
 	}
 
 	public void rm(String filename) {
-		File stagedFile = new File(STAGING_AREA, filename);
-		boolean deleted = false;
-		HashMap<String, String> contents = tree.get(head).getContents();
+		boolean staged = stagedHashes.remove(filename) != null;
+		Map<String, String> contents = tree.get(head).getContents();
 
 		if (contents.containsKey(filename)) {
-			File file = new File(WORKING_DIRECTORY, filename);
-			deleted = true;
-			file.delete();
-		}
-		if (deleted) {
+			deleteWorkingFile(filename);
 			deletions.add(filename);
-		} else if (!stagedFile.delete() && !deleted) {
-			System.out.println("No reason to remove the file.");
-			System.exit(0);
+		} else if (!staged) {
+			throw new GitletException("No reason to remove the file.");
+		}
+	}
+
+	/**
+	 * Moves the loose commits and file versions, and the contents of any existing
+	 * packs, into as few packs as possible, storing older versions of each file
+	 * as deltas. The longest delta chain is set by "repack.depth" in
+	 * .gitlet/config.
+	 */
+	public void repack() {
+		try {
+			long depth = Config.load().getLong(ObjectStore.DEPTH_KEY, ObjectStore.DEFAULT_DEPTH);
+			int[] result = tree.repack(new File(VERSIONS_DIRECTORY), (int) Math.max(0, depth),
+					getMaterializer().level());
+			System.out.println("Packed " + result[0] + " objects into " + result[1]
+					+ (result[1] == 1 ? " pack." : " packs."));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes the commits that no branch can reach and the trees and file
+	 * versions that neither those commits nor the staging area hold, and reports
+	 * the space reclaimed. Objects written within the last "gc.grace-days" days
+	 * (default 14) are kept, unless NOW is set.
+	 */
+	public void gc(boolean now) {
+		long cutoff = System.currentTimeMillis();
+		if (!now) {
+			long days = Config.load().getLong(GRACE_DAYS_KEY, DEFAULT_GRACE_DAYS);
+			cutoff -= TimeUnit.DAYS.toMillis(Math.max(0, days));
+		}
+		List<String> roots = new ArrayList<>(branches.values());
+		roots.add(head);
+		try {
+			long depth = Config.load().getLong(ObjectStore.DEPTH_KEY, ObjectStore.DEFAULT_DEPTH);
+			long[] result = tree.gc(roots, stagedHashes.values(), new File(VERSIONS_DIRECTORY), cutoff,
+					(int) Math.max(0, depth), getMaterializer().level());
+			System.out.println("Removed " + result[0] + (result[0] == 1 ? " commit, " : " commits, ") + result[1]
+					+ (result[1] == 1 ? " tree and " : " trees and ") + result[2]
+					+ (result[2] == 1 ? " version" : " versions") + ", reclaiming " + result[3] + " bytes.");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	public void log() {
-		Commit currentCommit = tree.get(head);
-		while (currentCommit != null) {
-			System.out.println(currentCommit);
-			String parentCommitID = currentCommit.getParent();
-			currentCommit = tree.get(parentCommitID);
+		log(Integer.MAX_VALUE, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Prints the first-parent history of the head commit, newest first. The walk
+	 * stops as soon as MAXCOUNT commits have been printed or a commit older than
+	 * SINCE is reached.
+	 *
+	 * @param maxCount the largest number of commits to print.
+	 * @param since    the earliest commit time to print, in epoch milliseconds.
+	 */
+	public void log(int maxCount, long since) {
+		CommitGraph graph = tree.graph();
+		LogWriter writer = new LogWriter(System.out, maxCount, since);
+		try {
+			int pos = graph.position(head);
+			while (pos >= 0 && !writer.isFull() && writer.accepts(graph.timestamp(pos))) {
+				writer.write(tree.getHeader(graph.id(pos)));
+				int[] parents = graph.parents(pos);
+				pos = parents.length == 0 ? -1 : parents[0];
+			}
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	public void globalLog() {
-		for (Commit c : tree.values()) {
-			System.out.println(c);
+		globalLog(Integer.MAX_VALUE, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Prints every commit ever made, up to MAXCOUNT of them, skipping commits
+	 * older than SINCE. Commit times are checked in the commit graph, so skipped
+	 * commits are never decoded.
+	 *
+	 * @param maxCount the largest number of commits to print.
+	 * @param since    the earliest commit time to print, in epoch milliseconds.
+	 */
+	public void globalLog(int maxCount, long since) {
+		CommitGraph graph = tree.graph();
+		LogWriter writer = new LogWriter(System.out, maxCount, since);
+		try {
+			for (int pos = 0; pos < graph.size() && !writer.isFull(); pos++) {
+				if (writer.accepts(graph.timestamp(pos))) {
+					writer.write(tree.getHeader(graph.id(pos)));
+				}
+			}
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	public void find(String message) {
 		boolean isFound = false;
-		for (Commit c : tree.values()) {
+		for (String id : tree.messageIndex().findMessage(message)) {
+			Commit c = tree.getHeader(id);
 			if (c.getMessage().equals(message)) {
 				isFound = true;
 				System.out.println(c.getId());
@@ -221,6 +759,28 @@ public class Repository implements Serializable {
 		}
 	}
 
+	/**
+	 * Prints the IDs of all commits whose message contains every word of the given
+	 * text, ignoring case and punctuation.
+	 *
+	 * @param text the words to look for.
+	 */
+	public void findWords(String text) {
+		boolean isFound = false;
+		Set<String> words = MessageIndex.words(text);
+		for (String id : tree.messageIndex().findWords(text)) {
+			Commit c = tree.getHeader(id);
+			if (MessageIndex.words(c.getMessage()).containsAll(words)) {
+				isFound = true;
+				System.out.println(c.getId());
+			}
+		}
+
+		if (!isFound) {
+			System.out.println("Found no commit with that message.");
+		}
+	}
+
 	public void status() {
 		System.out.println("=== Branches ===");
 
@@ -232,29 +792,161 @@ public class Repository implements Serializable {
 		});
 		System.out.println();
 
-		File staged = new File(STAGING_AREA);
-		String[] stagedFiles = staged.list();
-
 		System.out.println("=== Staged Files ===");
+		stagedHashes.keySet().stream().sorted().forEach(System.out::println);
+		System.out.println();
 
-		if (stagedFiles != null) {
-			HashMap<String, Boolean> temp = new HashMap<>();
-			for (String file : stagedFiles) {
-				temp.put(file, true);
+		System.out.println("=== Removed Files ===");
+		if (!deletions.isEmpty()) {
+			deletions.stream().sorted().forEach(System.out::println);
+		}
+		System.out.println("\n=== Modifications Not Staged For Commit ===\n" + "\n=== Untracked Files ===");
+	}
+
+	/**
+	 * Returns the files of the head commit with the staged changes applied: the
+	 * contents the next commit would have.
+	 */
+	private FileMap stagedContents() {
+		FileMap.Builder contents = new FileMap.Builder(tree.get(head).getContents());
+		for (String deletion : deletions) {
+			contents.remove(deletion);
+		}
+		for (Map.Entry<String, String> entry : stagedHashes.entrySet()) {
+			contents.put(entry.getKey(), entry.getValue());
+		}
+		return contents.build();
+	}
+
+	/**
+	 * Prints the differences between the staged contents and the working files,
+	 * for the files the next commit would track. Only files whose hash differs
+	 * are read; the stat cache makes hashing the others cheap.
+	 */
+	public void diff() {
+		FileMap staged = stagedContents();
+		List<String> names = new ArrayList<>(new TreeSet<>(staged.keySet()));
+		StatCache cache = getStatCache();
+		List<String> hashes;
+		try {
+			hashes = inParallel(names, name -> {
+				File file = new File(WORKING_DIRECTORY, name);
+				try {
+					return file.isFile() ? cache.hash(file, name) : null;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
+			return;
+		}
+		List<FileChange> changes = new ArrayList<>();
+		for (int i = 0; i < names.size(); i++) {
+			if (!staged.get(names.get(i)).equals(hashes.get(i))) {
+				changes.add(new FileChange(names.get(i), staged.get(names.get(i)), hashes.get(i), true));
 			}
-			for (String s : deletions) {
-				temp.remove(s);
+		}
+		printDiffs(changes);
+	}
+
+	/**
+	 * Prints the differences between the head commit and the staged contents.
+	 */
+	public void diffStaged() {
+		printDiffs(changes(tree.get(head).getContents(), stagedContents()));
+	}
+
+	/**
+	 * Prints the differences between the commits with IDs (or unique prefixes)
+	 * FIRST and SECOND.
+	 */
+	public void diff(String first, String second) {
+		FileMap from = tree.get(resolveCommitId(first)).getContents();
+		printDiffs(changes(from, tree.get(resolveCommitId(second)).getContents()));
+	}
+
+	/**
+	 * A file that differs between two sides of a diff. A hash is null where the
+	 * file is absent, and NEWHASH names a working file if INWORKINGDIR is set.
+	 */
+	private static class FileChange {
+		final String name;
+		final String oldHash;
+		final String newHash;
+		final boolean inWorkingDir;
+
+		FileChange(String name, String oldHash, String newHash, boolean inWorkingDir) {
+			this.name = name;
+			this.oldHash = oldHash;
+			this.newHash = newHash;
+			this.inWorkingDir = inWorkingDir;
+		}
+	}
+
+	/**
+	 * Returns the files whose version differs between FROM and TO, in name
+	 * order. Only the version IDs are compared.
+	 */
+	private static List<FileChange> changes(Map<String, String> from, Map<String, String> to) {
+		TreeSet<String> names = new TreeSet<>(from.keySet());
+		names.addAll(to.keySet());
+		List<FileChange> changes = new ArrayList<>();
+		for (String name : names) {
+			String oldHash = from.get(name), newHash = to.get(name);
+			if (oldHash == null || !oldHash.equals(newHash)) {
+				changes.add(new FileChange(name, oldHash, newHash, false));
 			}
-			Arrays.stream(stagedFiles).sorted().forEach(System.out::println);
-			System.out.println();
+		}
+		return changes;
+	}
 
-			System.out.println("=== Removed Files ===");
+	/**
+	 * Prints the unified diff of each of CHANGES, in order. Files are diffed in
+	 * parallel, DIFF_WINDOW at a time, so only the versions and output of one
+	 * window are held in memory: at most the old and new contents of DIFF_WINDOW
+	 * files and their diffs.
+	 */
+	private void printDiffs(List<FileChange> changes) {
+		OutputStream out = new BufferedOutputStream(System.out);
+		try {
+			for (int start = 0; start < changes.size(); start += DIFF_WINDOW) {
+				List<FileChange> window = changes.subList(start, Math.min(changes.size(), start + DIFF_WINDOW));
+				for (byte[] diff : inParallel(window, this::renderDiff)) {
+					out.write(diff);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
 		}
+	}
 
-		if (!deletions.isEmpty()) {
-			deletions.stream().sorted().forEach(System.out::println);
+	/**
+	 * Returns the unified diff of CHANGE, or nothing if its old and new contents
+	 * are the same even though their IDs differ. Called from the diff worker
+	 * threads.
+	 */
+	private byte[] renderDiff(FileChange change) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] old = change.oldHash == null ? null : readVersion(change.oldHash);
+			byte[] current = null;
+			if (change.newHash != null && change.inWorkingDir) {
+				current = Files.readAllBytes(new File(WORKING_DIRECTORY, change.name).toPath());
+			} else if (change.newHash != null) {
+				current = readVersion(change.newHash);
+			}
+			if (old != null && current != null && Arrays.equals(old, current)) {
+				return new byte[0];
+			}
+			Diff.writeUnified(change.name, old, current, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		System.out.println("\n=== Modifications Not Staged For Commit ===\n" + "\n=== Untracked Files ===");
+		return out.toByteArray();
 	}
 
 	/**
@@ -267,76 +959,108 @@ public class Repository implements Serializable {
 	public void checkoutBranch(String branch) {
 		String commitID = branches.get(branch);
 		if (commitID == null) {
-			System.out.println("No such branch exists.");
-			System.exit(0);
+			throw new GitletException("No such branch exists.");
 		}
 		if (currentBranch.equals(branch)) {
-			System.out.println("No need to checkout the current branch.");
-			System.exit(0);
+			throw new GitletException("No need to checkout the current branch.");
 		}
 
 		Commit branchCommit = tree.get(commitID);
-		HashMap<String, String> branchCommitContents = branchCommit.getContents();
+		FileMap branchCommitContents = branchCommit.getContents();
 		Commit currCommit = tree.get(head);
-		HashMap<String, String> currContents = currCommit.getContents();
+		FileMap currContents = currCommit.getContents();
 
 		checkUntrackedConflict(branchCommitContents, currContents);
-		File workingDir = new File(WORKING_DIRECTORY);
-		for (File file : workingDir.listFiles()) {
-			if (!branchCommitContents.containsKey(file.getName()) && currContents.containsKey(file.getName())) {
-				file.delete();
-			}
-		}
-		for (Map.Entry<String, String> entry : branchCommitContents.entrySet()) {
-			writeBackToWorkingDir(entry.getKey(), entry.getValue());
-		}
+		updateWorkingDir(currContents, branchCommitContents);
 		head = commitID;
 		currentBranch = branch;
 	}
 
-	private void checkUntrackedConflict(HashMap<String, String> branchContents, HashMap<String, String> currContents) {
-		File workingDir = new File(WORKING_DIRECTORY);
-		for (File file : workingDir.listFiles()) {
-			if (branchContents.containsKey(file.getName()) && !currContents.containsKey(file.getName())
-					&& !computeHash(file).equals(branchContents.get(file.getName()))) {
-				System.out.println("There is an untracked file in " + "the way; delete it or add it first.");
-				System.exit(0);
+	/**
+	 * Changes the working directory from the files of a commit with contents
+	 * CURRCONTENTS to those of a commit with contents TARGETCONTENTS. Files
+	 * tracked only by the current commit are found by comparing the two maps,
+	 * which skips the directories they share, and are deleted along with the
+	 * directories they leave empty. Only the files of the target whose working
+	 * copy differs from it are rewritten, in parallel. The stat cache makes
+	 * checking the unchanged files cheap.
+	 */
+	private void updateWorkingDir(FileMap currContents, FileMap targetContents) {
+		FileMap.compare(currContents, targetContents, (name, oldId, newId) -> {
+			if (newId == null) {
+				deleteWorkingFile(name);
 			}
-		}
+		});
+		StatCache cache = getStatCache();
+		Materializer materializer = getMaterializer();
+		inParallel(new ArrayList<>(targetContents.keySet()), filename -> {
+			File file = new File(WORKING_DIRECTORY, filename);
+			String hash = targetContents.get(filename);
+			try {
+				if (file.isFile() && cache.hash(file, filename).equals(hash)) {
+					return false;
+				}
+			} catch (IOException e) {
+				// Rewrite the file rather than trust a copy that cannot be read.
+			}
+			writeBackToWorkingDir(cache, materializer, filename, hash);
+			return true;
+		});
+	}
+
+	/**
+	 * Throws a GitletException if a file that BRANCHCONTENTS holds and
+	 * CURRCONTENTS does not is in the working directory with other contents.
+	 * Only the files in which the two maps differ are looked at.
+	 */
+	private void checkUntrackedConflict(FileMap branchContents, FileMap currContents) {
+		FileMap.compare(currContents, branchContents, (name, oldId, newId) -> {
+			if (oldId == null && newId != null && new File(WORKING_DIRECTORY, name).isFile()
+					&& !newId.equals(computeHash(name))) {
+				throw new GitletException("There is an untracked file in " + "the way; delete it or add it first.");
+			}
+		});
 	}
 
 	public void checkout(String filename) {
 		Commit headCommit = tree.get(head);
 		if (!headCommit.getContents().containsKey(filename)) {
-			System.out.println("File does not exist in that commit.");
-			System.exit(0);
+			throw new GitletException("File does not exist in that commit.");
 		}
-		HashMap<String, String> headFiles = getHeadCommit().getContents();
+		FileMap headFiles = getHeadCommit().getContents();
 		String filehash = headFiles.get(filename);
-		writeBackToWorkingDir(filename, filehash);
+		writeBackToWorkingDir(getStatCache(), getMaterializer(), filename, filehash);
 	}
 
 	public void checkout(String id, String filename) {
-		if (id.length() < 40) { // id is abbreviated if < 40 digits long
-			for (String s : tree.keySet()) { // must check each key to see if it starts with the
-				if (s.startsWith(id)) { // abbreviated id.
-					id = s;
-					break;
-				}
-			}
-		} else if (!tree.containsKey(id)) {
-			System.out.println("No commit with that id exists.");
-			System.exit(0);
-		} else if (!tree.get(id).getContents().containsKey(filename)) {
-			System.out.println("File does not exist in that commit.");
-			System.exit(0);
+		Commit checkoutCommit = tree.get(resolveCommitId(id));
+		if (!checkoutCommit.getContents().containsKey(filename)) {
+			throw new GitletException("File does not exist in that commit.");
 		}
-		Commit checkoutCommit = tree.get(id);
 		String filehash = checkoutCommit.getContents().get(filename);
-		writeBackToWorkingDir(filename, filehash);
+		writeBackToWorkingDir(getStatCache(), getMaterializer(), filename, filehash);
 
 	}
 
+	/**
+	 * Returns the full ID of the commit identified by the full or abbreviated ID.
+	 * Abbreviations are looked up by binary search in the sorted ID table of the
+	 * commit graph. Throws a GitletException if no commit, or more than one,
+	 * matches.
+	 *
+	 * @param id the full or abbreviated commit ID.
+	 * @return the full commit ID.
+	 */
+	private String resolveCommitId(String id) {
+		List<String> matches = tree.graph().findByPrefix(id.toLowerCase(), 2);
+		if (matches.isEmpty()) {
+			throw new GitletException("No commit with that id exists.");
+		} else if (matches.size() > 1) {
+			throw new GitletException("Commit id " + id + " is ambiguous.");
+		}
+		return matches.get(0);
+	}
+
 	public void branch(String name) {
 		String branchAdded = branches.put(name, head);
 		if (branchAdded != null) {
@@ -346,8 +1070,7 @@ public class Repository implements Serializable {
 
 	public void rmBranch(String branch) {
 		if (branch.equals(currentBranch)) {
-			System.out.println("Cannot remove the current branch.");
-			System.exit(0);
+			throw new GitletException("Cannot remove the current branch.");
 		}
 		String removedBranch = branches.remove(branch);
 		if (removedBranch == null) {
@@ -355,70 +1078,51 @@ public class Repository implements Serializable {
 		}
 	}
 
+	/**
+	 * Checks out the commit ID (or a unique prefix of it) and makes it the head
+	 * of the current branch. The checkout goes through a temporary branch, which
+	 * is removed again even if the checkout fails, so a failed reset leaves the
+	 * branches as they were.
+	 */
 	public void reset(String id) {
-		if (id.length() < 40) { // id is abbreviated if < 40 digits long
-			for (String s : tree.keySet()) { // must check each key to see if it starts with the
-				if (s.startsWith(id)) { // abbreviated id.
-					id = s;
-					break;
-				}
-			}
-		}
-		if (!tree.containsKey(id)) {
-			System.out.println("No commit with that id exists.");
-			System.exit(0);
-		}
+		id = resolveCommitId(id);
 		String temp = "__temp__" + currentBranch + id;
 		branches.put(temp, id);
 		String savedCurrentBranch = currentBranch;
-		checkoutBranch(temp);
-
-		branches.remove(temp);
-		currentBranch = savedCurrentBranch;
+		try {
+			checkoutBranch(temp);
+		} finally {
+			branches.remove(temp);
+			currentBranch = savedCurrentBranch;
+		}
 		branches.put(currentBranch, id);
 
-		File stage = new File(STAGING_AREA);
-		for (File stagedFile : stage.listFiles()) {
-			stagedFile.delete();
-		}
+		stagedHashes.clear();
 	}
 
 	private void checkBranchErrors(String branch) {
 		if (branches.get(branch) == null) {
-			System.out.println("A branch with that name does not exist.");
-			System.exit(0);
+			throw new GitletException("A branch with that name does not exist.");
 		} else if (currentBranch.equals(branch)) {
-			System.out.println("Cannot merge a branch with itself.");
-			System.exit(0);
+			throw new GitletException("Cannot merge a branch with itself.");
 		}
 	}
 
+	/**
+	 * Merges the head of BRANCH into the current branch. Only the files that
+	 * changed on either side since the split point are looked at; they are
+	 * found by comparing file maps, which skips everything the maps share.
+	 */
 	public void merge(String branch) {
 		checkBranchErrors(branch);
-		File stagedDir = new File(STAGING_AREA);
-		if (!deletions.isEmpty() || stagedDir.list().length > 0) {
-			System.out.println("You have uncommitted changes.");
-			System.exit(0);
-		}
-		Commit splitPoint = null, currentCommit = tree.get(head), givenBranchCommit = tree.get(branches.get(branch));
-		HashMap<String, String> givenContents = givenBranchCommit.getContents();
-		HashMap<String, String> currentContents = currentCommit.getContents();
-		checkUntrackedConflict(givenContents, currentContents);
-		boolean isFound = false;
-		while (!currentCommit.getParent().equals("") && !isFound) {
-			while (!givenBranchCommit.getParent().equals("") && !isFound) {
-				if (currentCommit.getId().equals(givenBranchCommit.getId())) {
-					splitPoint = tree.get(currentCommit.getId());
-					isFound = true;
-				} else {
-					givenBranchCommit = tree.get(givenBranchCommit.getParent());
-				}
-			}
-			currentCommit = tree.get(currentCommit.getParent());
-			givenBranchCommit = tree.get(branches.get(branch));
+		if (!deletions.isEmpty() || !stagedHashes.isEmpty()) {
+			throw new GitletException("You have uncommitted changes.");
 		}
-		currentCommit = tree.get(head);
-		givenBranchCommit = tree.get(branches.get(branch));
+		Commit currentCommit = tree.get(head), givenBranchCommit = tree.get(branches.get(branch));
+		FileMap givenContents = givenBranchCommit.getContents();
+		FileMap currentContents = currentCommit.getContents();
+		checkUntrackedConflict(givenContents, currentContents);
+		Commit splitPoint = tree.get(MergeBase.find(tree, currentCommit.getId(), givenBranchCommit.getId()));
 
 		if (splitPoint.getId().equals(givenBranchCommit.getId())) {
 			System.out.println("Given branch is an ancestor of the current branch.");
@@ -428,91 +1132,149 @@ public class Repository implements Serializable {
 			System.out.println("Current branch fast-forwarded.");
 			return;
 		}
-		HashMap<String, String> splitPointContents = splitPoint.getContents();
-		String splitFile, givenFile;
+		FileMap splitPointContents = splitPoint.getContents();
+		TreeSet<String> changed = new TreeSet<>();
+		FileMap.compare(splitPointContents, currentContents, (name, oldId, newId) -> changed.add(name));
+		FileMap.compare(splitPointContents, givenContents, (name, oldId, newId) -> changed.add(name));
 		boolean mergeConflict = false;
-		for (Map.Entry<String, String> entry : currentContents.entrySet()) {
-			splitFile = splitPointContents.get(entry.getKey());
-			givenFile = givenContents.get(entry.getKey());
-			if (splitFile == null && givenFile == null) {
+		for (String name : changed) {
+			String splitFile = splitPointContents.get(name);
+			String currentFile = currentContents.get(name), givenFile = givenContents.get(name);
+			if (Objects.equals(currentFile, givenFile) || Objects.equals(splitFile, givenFile)) {
 				continue;
-			}
-			if (splitFile != null && givenFile == null && splitFile.equals(entry.getValue())) {
-				rm(entry.getKey());
-			} else if (splitFile != null && splitFile.equals(entry.getValue()) && !splitFile.equals(givenFile)) {
-				checkout(givenBranchCommit.getId(), entry.getKey());
-				add(entry.getKey());
-				givenContents.remove(entry.getKey());
-			} else if (splitFile != null && splitFile.equals(givenFile) && !splitFile.equals(entry.getValue())) {
-				givenContents.remove(entry.getKey());
-			} else if (givenFile != null && !givenFile.equals(entry.getValue())
-					|| (splitFile != null && !splitFile.equals(entry.getValue()) && givenFile == null)) {
-				mergeConflict = true;
-				mergeConcat(entry.getKey(), entry.getValue(), givenFile, givenFile == null);
-			}
-		}
-		for (Map.Entry<String, String> entry : givenContents.entrySet()) {
-			splitFile = splitPointContents.get(entry.getKey());
-			if (splitFile == null) {
-				checkout(givenBranchCommit.getId(), entry.getKey());
-				add(entry.getKey());
-			} else if (!splitFile.equals(entry.getValue()) && !currentContents.containsKey(entry.getKey())) {
-				mergeConflict = true;
-				mergeConcat(entry.getKey(), entry.getValue(), "", true);
+			} else if (Objects.equals(splitFile, currentFile) && givenFile == null) {
+				rm(name);
+			} else if (Objects.equals(splitFile, currentFile)) {
+				checkout(givenBranchCommit.getId(), name);
+				add(name);
+			} else {
+				mergeConflict |= !mergeFile(name, splitFile, currentFile, givenFile);
 			}
 		}
 		if (mergeConflict) {
 			System.out.println("Encountered a merge conflict.");
 		} else {
-			commit("Merged " + currentBranch + " with " + branch + ".");
+			commit("Merged " + currentBranch + " with " + branch + ".", givenBranchCommit.getId());
 		}
 	}
 
-	private void mergeConcat(String currentFile, String currentHash, String otherHash, boolean otherNull) {
-
-		String ext = currentFile.substring(currentFile.lastIndexOf('.'));
-		File file = new File(VERSIONS_DIRECTORY, currentHash + ext);
-
-		String merged = "<<<<<<< HEAD\n";
-		merged += new String(Utils.readContents(file)) + "=======\n";
-
-		if (!otherNull) {
-			file = new File(VERSIONS_DIRECTORY, otherHash + ext);
-			merged += new String(Utils.readContents(file));
+	/**
+	 * Writes to the working directory the merge of two versions of FILENAME that
+	 * both changed since the split point, and stages it unless it conflicts. The
+	 * versions are merged line by line (see Merge); if either side deleted the
+	 * file, the whole file conflicts.
+	 *
+	 * @param splitHash   the version at the split point, or null if there was
+	 *                    none.
+	 * @param currentHash the version in the current branch, or null if deleted.
+	 * @param givenHash   the version in the given branch, or null if deleted.
+	 * @return whether the file merged without conflict.
+	 */
+	private boolean mergeFile(String filename, String splitHash, String currentHash, String givenHash) {
+		boolean clean = false;
+		byte[] current = currentHash == null ? new byte[0] : readVersion(currentHash);
+		byte[] given = givenHash == null ? new byte[0] : readVersion(givenHash);
+		File file = new File(WORKING_DIRECTORY, filename);
+		file.getParentFile().mkdirs();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			if (currentHash == null || givenHash == null) {
+				Merge.conflict(current, given, out);
+			} else {
+				byte[] split = splitHash == null ? new byte[0] : readVersion(splitHash);
+				clean = Merge.merge(split, current, given, out);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		merged += ">>>>>>>\n";
-		Utils.writeContents(new File(WORKING_DIRECTORY, currentFile), merged.getBytes());
+		if (clean) {
+			add(filename);
+		}
+		return clean;
 	}
 
-	public String computeHash(File file) {
+	/**
+	 * Returns the version ID of a file in the working directory. The file is only
+	 * read if the stat cache has no trusted entry matching its size, modification
+	 * time and inode.
+	 *
+	 * @param filename the path of the file in the working directory.
+	 * @return the SHA-1 ID of the file's current version.
+	 */
+	public String computeHash(String filename) {
 		try {
-			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-			FileInputStream in = new FileInputStream(file);
-
-			sha1.update(file.getName().getBytes());
-			sha1.update(in.readAllBytes());
-			in.close();
-			return new BigInteger(1, sha1.digest()).toString(16);
-
-		} catch (NoSuchAlgorithmException | IOException e) {
+			return getStatCache().hash(new File(WORKING_DIRECTORY, filename), filename);
+		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
-	private void writeBackToWorkingDir(String filename, String hash) {
+	/**
+	 * Writes the version HASH to the working file FILENAME through MATERIALIZER
+	 * and records it in CACHE. Safe to call from the checkout worker threads,
+	 * which share the CACHE and MATERIALIZER they are given.
+	 */
+	private void writeBackToWorkingDir(StatCache cache, Materializer materializer, String filename, String hash) {
 		if (hash == null) {
-			System.out.println("File does not exist in that commit.");
-			System.exit(0);
+			throw new GitletException("File does not exist in that commit.");
 		}
 
 		File dest = new File(WORKING_DIRECTORY, filename);
-		File file = new File(VERSIONS_DIRECTORY, hash + dest.getName().substring(dest.getName().lastIndexOf('.')));
+		File file = versionFile(hash);
 
 		try {
-			Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			dest.getParentFile().mkdirs();
+			if (file.isFile()) {
+				materializer.restore(file, dest);
+			} else {
+				materializer.restore(findPackedVersion(hash), dest);
+			}
+			cache.update(dest, filename, hash);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Returns the file in the versions directory holding the version HASH. A
+	 * version is named by its ID alone, so every file with the same contents
+	 * shares it.
+	 */
+	private static File versionFile(String hash) {
+		return new File(VERSIONS_DIRECTORY, hash);
+	}
+
+	/**
+	 * Returns the contents of the version HASH.
+	 */
+	private byte[] readVersion(String hash) {
+		try {
+			File file = versionFile(hash);
+			return file.isFile() ? Blob.read(file) : Blob.read(findPackedVersion(hash));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private ByteBuffer findPackedVersion(String hash) throws IOException {
+		ByteBuffer data = tree.findPacked(hash);
+		if (data == null) {
+			throw new IOException("missing version " + hash);
+		}
+		return data;
+	}
+
+	private StatCache getStatCache() {
+		if (statCache == null) {
+			statCache = StatCache.load(new File(INDEX_FILE));
+		}
+		return statCache;
+	}
+
+	private Materializer getMaterializer() {
+		if (materializer == null) {
+			materializer = Materializer.fromConfig(Config.load());
+		}
+		return materializer;
+	}
 }
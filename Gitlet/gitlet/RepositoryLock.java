@@ -0,0 +1,55 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RepositoryLock is an exclusive lock on a Gitlet repository, held while a
+ * command runs so that commands from different processes (including the
+ * daemon) never interleave their reads and writes of the .gitlet directory.
+ */
+class RepositoryLock implements AutoCloseable {
+	/* Name of the lock file inside the gitlet directory. */
+	private static final String LOCK_FILE = "lock";
+
+	private final FileChannel channel;
+	private final FileLock lock;
+
+	private RepositoryLock(FileChannel channel, FileLock lock) {
+		this.channel = channel;
+		this.lock = lock;
+	}
+
+	/**
+	 * Waits until no other process holds the lock of the repository in the
+	 * current directory, and takes it.
+	 *
+	 * @return the lock, or null if there is no repository to lock.
+	 */
+	static RepositoryLock acquire() {
+		File gitlet = new File(Repository.GITLET_DIRECTORY);
+		if (!gitlet.isDirectory()) {
+			return null;
+		}
+		try {
+			FileChannel channel = FileChannel.open(new File(gitlet, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			return new RepositoryLock(channel, channel.lock());
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			lock.release();
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
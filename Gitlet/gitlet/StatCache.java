@@ -0,0 +1,168 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StatCache is a persistent index of the working directory recording, for each
+ * file that has been hashed, its size, modification time, inode and the ID it
+ * hashed to. A file whose stat data still matches its entry is not read again.
+ *
+ * An entry is only trusted if the file was last modified strictly before the
+ * index itself was written. Otherwise the file could have been changed again
+ * within the same timestamp tick after it was hashed (a "racy" entry) and it is
+ * hashed again.
+ *
+ * The cache may be used by several hashing threads at once.
+ */
+class StatCache {
+	private static final int INDEX_MAGIC = 0x474c4931; // "GLI1"
+	private static final int VERSION = 1;
+
+	/* Whether the file system exposes inode numbers through the "unix" view. */
+	private static boolean unixView = true;
+
+	/* Location of the index file. */
+	private final File file;
+
+	/* Entries keyed by file name. */
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/* Modification time of the index file when it was read, in nanoseconds. */
+	private final long indexTime;
+
+	/* Whether entries changed since the index was read. */
+	private volatile boolean dirty;
+
+	/**
+	 * One indexed file.
+	 */
+	private static class Entry {
+		final long size;
+		final long mtime;
+		final long inode;
+		final String hash;
+
+		Entry(long size, long mtime, long inode, String hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.inode = inode;
+			this.hash = hash;
+		}
+
+		boolean matches(Entry other) {
+			return size == other.size && mtime == other.mtime && inode == other.inode;
+		}
+	}
+
+	private StatCache(File file, ConcurrentHashMap<String, Entry> entries, long indexTime) {
+		this.file = file;
+		this.entries = entries;
+		this.indexTime = indexTime;
+	}
+
+	/**
+	 * Reads the index stored in FILE. A missing or unreadable index yields an
+	 * empty cache.
+	 */
+	static StatCache load(File file) {
+		ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+		if (!file.isFile()) {
+			return new StatCache(file, entries, Long.MIN_VALUE);
+		}
+		try (Codec.Input in = new Codec.Input(new FileInputStream(file))) {
+			in.expectHeader(INDEX_MAGIC, file);
+			int size = in.readVarInt();
+			for (int i = 0; i < size; i++) {
+				String name = in.readString();
+				entries.put(name, new Entry(in.readVarLong(), in.readLong(), in.readVarLong(), in.readId()));
+			}
+			long indexTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+			return new StatCache(file, entries, indexTime);
+		} catch (IOException e) {
+			return new StatCache(file, new ConcurrentHashMap<>(), Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Returns the ID of FILE tracked under NAME, hashing the file only if its stat
+	 * data does not match a trusted entry. A new entry pairs the hash with the
+	 * stat data taken before hashing, so a file written while it is hashed no
+	 * longer matches it.
+	 */
+	String hash(File file, String name) throws IOException {
+		Entry stat = stat(file, null);
+		Entry entry = entries.get(name);
+		if (entry != null && entry.matches(stat) && entry.mtime < indexTime) {
+			return entry.hash;
+		}
+		String hash = FileHasher.hash(file);
+		entries.put(name, new Entry(stat.size, stat.mtime, stat.inode, hash));
+		dirty = true;
+		return hash;
+	}
+
+	/**
+	 * Records that FILE, tracked under NAME, has just been written with contents
+	 * whose ID is HASH, so that it will not need to be hashed again.
+	 */
+	void update(File file, String name, String hash) {
+		try {
+			entries.put(name, stat(file, hash));
+			dirty = true;
+		} catch (IOException e) {
+			entries.remove(name);
+		}
+	}
+
+	/**
+	 * Writes the index back to disk if any entry changed.
+	 */
+	void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		try (Codec.Output out = new Codec.Output(new FileOutputStream(file))) {
+			out.writeInt(INDEX_MAGIC);
+			out.writeByte(VERSION);
+			out.writeVarLong(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				Entry e = entry.getValue();
+				out.writeString(entry.getKey());
+				out.writeVarLong(e.size);
+				out.writeLong(e.mtime);
+				out.writeVarLong(e.inode);
+				out.writeId(e.hash);
+			}
+		}
+		dirty = false;
+	}
+
+	private static Entry stat(File file, String hash) throws IOException {
+		Path path = file.toPath();
+		if (unixView) {
+			try {
+				Map<String, Object> attributes = Files.readAttributes(path, "unix:size,lastModifiedTime,ino",
+						LinkOption.NOFOLLOW_LINKS);
+				return new Entry((Long) attributes.get("size"),
+						((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+						(Long) attributes.get("ino"), hash);
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				unixView = false;
+			}
+		}
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+				LinkOption.NOFOLLOW_LINKS);
+		return new Entry(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0, hash);
+	}
+}